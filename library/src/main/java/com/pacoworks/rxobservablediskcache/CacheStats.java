@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Snapshot of the statistics of a {@link RxObservableDiskCache}, returned by
+ * {@link RxObservableDiskCache#stats(int)}.
+ * <p/>
+ * Per key values are estimates kept in fixed memory, so they may be slightly over the real ones.
+ *
+ * @author pakoito
+ */
+public class CacheStats {
+    public final long hits;
+
+    public final long misses;
+
+    public final long writes;
+
+    /**
+     * Total size of the Values written, or 0 if no size function was provided.
+     */
+    public final long bytesWritten;
+
+    /**
+     * Estimated number of distinct keys written by this cache since it was created. It never
+     * decreases, so keys deleted or written by other processes or instances are not reflected.
+     */
+    public final long estimatedKeysWritten;
+
+    private final long[] ageHistogram;
+
+    /**
+     * Most read keys, from most to least read.
+     */
+    public final List<HotKey> hotKeys;
+
+    CacheStats(long hits, long misses, long writes, long bytesWritten, long estimatedKeysWritten,
+            long[] ageHistogram, List<HotKey> hotKeys) {
+        this.hits = hits;
+        this.misses = misses;
+        this.writes = writes;
+        this.bytesWritten = bytesWritten;
+        this.estimatedKeysWritten = estimatedKeysWritten;
+        this.ageHistogram = ageHistogram;
+        this.hotKeys = hotKeys;
+    }
+
+    /**
+     * @return ratio of reads that found a valid cached Value
+     */
+    public double hitRatio() {
+        final long reads = hits + misses;
+        return reads == 0 ? 0 : (double)hits / reads;
+    }
+
+    /**
+     * @return a copy of the count of hits by the age of their Policy: under a minute, 10 minutes,
+     *         an hour, 6 hours, a day, a week, and older. All 0 if no timestamp function was
+     *         provided.
+     */
+    public long[] ageHistogram() {
+        return ageHistogram.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" + "hits=" + hits + ", misses=" + misses + ", writes=" + writes
+                + ", bytesWritten=" + bytesWritten + ", estimatedKeysWritten=" + estimatedKeysWritten
+                + ", ageHistogram=" + Arrays.toString(ageHistogram) + ", hotKeys=" + hotKeys
+                + '}';
+    }
+
+    /**
+     * Statistics of a frequently read key.
+     */
+    public static class HotKey {
+        public final String key;
+
+        public final long reads;
+
+        public final long hits;
+
+        /**
+         * Size of the last Value written in this process, or -1 if unknown.
+         */
+        public final int sizeBytes;
+
+        HotKey(String key, long reads, long hits, int sizeBytes) {
+            this.key = key;
+            this.reads = reads;
+            this.hits = hits;
+            this.sizeBytes = sizeBytes;
+        }
+
+        /**
+         * @return ratio of reads of the key that found a valid cached Value
+         */
+        public double hitRatio() {
+            return reads == 0 ? 0 : Math.min(1, (double)hits / reads);
+        }
+
+        @Override
+        public String toString() {
+            return "HotKey{" + "key=" + key + ", reads=" + reads + ", hits=" + hits
+                    + ", sizeBytes=" + sizeBytes + '}';
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import rx.Completable;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Action2;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * Private class containing the content addressed storage methods for {@link RxObservableDiskCache}
+ * <p/>
+ * Blobs are shared between keys, so a collection can't rely on the key locks. Writes hold a shared
+ * lock while they check and reference a blob, and record it in every running collection. A
+ * collection only deletes a blob while holding the exclusive lock, and skips the ones written since
+ * it started reading references.
+ * <p/>
+ * Every key holding a reference is also marked with an empty entry, so a collection only reads the
+ * marked keys instead of every Value in the book.
+ *
+ * @author pakoito
+ */
+class Deduplication {
+    private static final String BLOB_PREFIX = "rxobservablediskcache_blob_";
+
+    private static final String REFERENCE_MARK_PREFIX = "rxobservablediskcache_reference_";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ReentrantReadWriteLock BLOBS_LOCK = new ReentrantReadWriteLock();
+
+    /* Blobs written during each running collection */
+    private static final List<Set<String>> COLLECTIONS = new CopyOnWriteArrayList<>();
+
+    private Deduplication() {
+        // No instances
+    }
+
+    static <V, P> Func1<P, Observable<Cached<V, P>>> readValue(
+            final String key, final Storage cache) {
+        return new Func1<P, Observable<Cached<V, P>>>() {
+            @Override
+            public Observable<Cached<V, P>> call(final P policy) {
+                return cache.<BlobReference> read(key)
+                        .toObservable()
+                        .flatMap(new Func1<BlobReference, Observable<V>>() {
+                            @Override
+                            public Observable<V> call(BlobReference reference) {
+                                return cache.<V> read(reference.blobKey).toObservable();
+                            }
+                        })
+                        .map(RxObservableDiskCache.<V, P> createDiskCached(policy));
+            }
+        };
+    }
+
+    static <V, P> Func1<Cached<V, P>, Completable> writeValue(
+            final String key, final Storage cache, final Func1<V, byte[]> serializer,
+            final Action1<Cached<V, P>> onWritten) {
+        final String policyKey = RxObservableDiskCache.composePolicyKey(key);
+        final String markKey = composeReferenceMarkKey(key);
+        return new Func1<Cached<V, P>, Completable>() {
+            @Override
+            public Completable call(final Cached<V, P> ktCached) {
+                final String blobKey = composeBlobKey(serializer.call(ktCached.value));
+                final Completable writeBlobAndReference = cache.exists(blobKey)
+                        .toObservable()
+                        .flatMap(new Func1<Boolean, Observable<Object>>() {
+                            @Override
+                            public Observable<Object> call(Boolean exists) {
+                                return exists
+                                        ? Observable.<Object> empty()
+                                        : cache.write(blobKey, ktCached.value).<Object> toObservable();
+                            }
+                        })
+                        .toCompletable()
+                        /* The reference is written after the blob so it never points to a missing one */
+                        .andThen(Completable.mergeDelayError(
+                                cache.write(key, new BlobReference(blobKey)),
+                                cache.write(policyKey, ktCached.policy),
+                                cache.write(markKey, Boolean.TRUE)));
+                return Completable.fromAction(new Action0() {
+                    @Override
+                    public void call() {
+                        BLOBS_LOCK.readLock().lock();
+                        try {
+                            for (Set<String> writtenBlobs : COLLECTIONS) {
+                                writtenBlobs.add(blobKey);
+                            }
+                            writeBlobAndReference.await();
+                        } finally {
+                            BLOBS_LOCK.readLock().unlock();
+                        }
+                    }
+                }).doOnCompleted(RxObservableDiskCache.notifyWritten(onWritten, ktCached));
+            }
+        };
+    }
+
+    static Completable deleteValue(String key, Storage cache) {
+        return Completable.mergeDelayError(cache.delete(key),
+                cache.delete(RxObservableDiskCache.composePolicyKey(key)),
+                cache.delete(composeReferenceMarkKey(key)));
+    }
+
+    static Completable collectGarbage(final Storage cache) {
+        return Completable.defer(new Func0<Completable>() {
+            @Override
+            public Completable call() {
+                final Set<String> writtenBlobs = Collections
+                        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                return Completable.fromAction(new Action0() {
+                    @Override
+                    public void call() {
+                        /* Writes in progress finish first, so their references are read */
+                        BLOBS_LOCK.writeLock().lock();
+                        try {
+                            COLLECTIONS.add(writtenBlobs);
+                        } finally {
+                            BLOBS_LOCK.writeLock().unlock();
+                        }
+                    }
+                })
+                        .andThen(deleteUnreferencedBlobs(cache, writtenBlobs))
+                        .doAfterTerminate(finishCollection(writtenBlobs))
+                        .doOnUnsubscribe(finishCollection(writtenBlobs));
+            }
+        });
+    }
+
+    private static Action0 finishCollection(final Set<String> writtenBlobs) {
+        return new Action0() {
+            @Override
+            public void call() {
+                COLLECTIONS.remove(writtenBlobs);
+            }
+        };
+    }
+
+    private static Completable deleteUnreferencedBlobs(final Storage cache,
+            final Set<String> writtenBlobs) {
+        return cache.keys()
+                .toObservable()
+                .flatMap(new Func1<List<String>, Observable<String>>() {
+                    @Override
+                    public Observable<String> call(final List<String> keys) {
+                        return findReferencedBlobs(cache, keys)
+                                .flatMap(new Func1<Set<String>, Observable<String>>() {
+                                    @Override
+                                    public Observable<String> call(Set<String> referenced) {
+                                        return Observable.from(
+                                                findUnreferencedBlobs(keys, referenced));
+                                    }
+                                });
+                    }
+                })
+                .concatMap(new Func1<String, Observable<Object>>() {
+                    @Override
+                    public Observable<Object> call(String blobKey) {
+                        return deleteBlob(cache, blobKey, writtenBlobs).toObservable();
+                    }
+                })
+                .toCompletable();
+    }
+
+    private static Completable deleteBlob(final Storage cache, final String blobKey,
+            final Set<String> writtenBlobs) {
+        return Completable.fromAction(new Action0() {
+            @Override
+            public void call() {
+                BLOBS_LOCK.writeLock().lock();
+                try {
+                    /* A key may have been written to reference it after its references were read */
+                    if (!writtenBlobs.contains(blobKey)) {
+                        cache.delete(blobKey).await();
+                    }
+                } finally {
+                    BLOBS_LOCK.writeLock().unlock();
+                }
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    private static Observable<Set<String>> findReferencedBlobs(final Storage cache,
+            List<String> keys) {
+        return Observable.from(findMarkedKeys(keys))
+                .concatMap(new Func1<String, Observable<Object>>() {
+                    @Override
+                    public Observable<Object> call(String key) {
+                        return cache.<Object> read(key).toObservable()
+                                .onErrorResumeNext(ignoreIfDeleted(cache, key));
+                    }
+                })
+                .ofType(BlobReference.class)
+                .collect(new Func0<Set<String>>() {
+                    @Override
+                    public Set<String> call() {
+                        return new HashSet<>();
+                    }
+                }, new Action2<Set<String>, BlobReference>() {
+                    @Override
+                    public void call(Set<String> referenced, BlobReference reference) {
+                        referenced.add(reference.blobKey);
+                    }
+                });
+    }
+
+    /**
+     * @return the keys marked as holding a reference that are still stored
+     */
+    private static List<String> findMarkedKeys(List<String> keys) {
+        final Set<String> allKeys = new HashSet<>(keys);
+        final List<String> markedKeys = new ArrayList<>();
+        for (String key : keys) {
+            if (key.startsWith(REFERENCE_MARK_PREFIX)) {
+                final String markedKey = key.substring(REFERENCE_MARK_PREFIX.length());
+                if (allKeys.contains(markedKey)) {
+                    markedKeys.add(markedKey);
+                }
+            }
+        }
+        return markedKeys;
+    }
+
+    /**
+     * A key deleted after listing holds no reference, but any other failure may hide one, so it
+     * stops the collection before deleting anything.
+     */
+    private static Func1<Throwable, Observable<Object>> ignoreIfDeleted(final Storage cache,
+            final String key) {
+        return new Func1<Throwable, Observable<Object>>() {
+            @Override
+            public Observable<Object> call(final Throwable throwable) {
+                return cache.exists(key)
+                        .toObservable()
+                        .flatMap(new Func1<Boolean, Observable<Object>>() {
+                            @Override
+                            public Observable<Object> call(Boolean exists) {
+                                return exists
+                                        ? Observable.<Object> error(throwable)
+                                        : Observable.<Object> empty();
+                            }
+                        });
+            }
+        };
+    }
+
+    private static List<String> findUnreferencedBlobs(List<String> keys, Set<String> referenced) {
+        final List<String> unreferenced = new ArrayList<>();
+        for (String key : keys) {
+            if (key.startsWith(BLOB_PREFIX) && !referenced.contains(key)) {
+                unreferenced.add(key);
+            }
+        }
+        return unreferenced;
+    }
+
+    private static String composeReferenceMarkKey(String key) {
+        return REFERENCE_MARK_PREFIX + key;
+    }
+
+    private static String composeBlobKey(byte[] bytes) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+        return BLOB_PREFIX + new String(hex);
+    }
+
+    /**
+     * Stored under a key in place of its Value, pointing to the deduplicated Value.
+     */
+    static final class BlobReference {
+        final String blobKey;
+
+        BlobReference(String blobKey) {
+            this.blobKey = blobKey;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * Memory tier for {@link RxObservableDiskCache} that keeps serialized Values in direct
+ * {@link ByteBuffer} slabs split in fixed size blocks.
+ * <p/>
+ * On Dalvik direct buffers are allocated natively, outside of the Java heap. On ART they're backed
+ * by non-movable arrays that count towards the heap limit, so the tier doesn't extend the memory
+ * available to the app there. In both cases each Value is a few blocks of bytes instead of a graph
+ * of objects, so it adds nothing for the garbage collector to trace.
+ * <p/>
+ * Values are decoded on every hit, which is still cheaper than a disk read. Policies are kept on
+ * heap, as they're expected to be small. Slabs are allocated as entries are written, up to the
+ * budget, and when it's exceeded the least recently used entries are evicted. Trimming moves the
+ * remaining entries to the first slabs and releases the rest.
+ * <p/>
+ * Register it with {@link Context#registerComponentCallbacks(android.content.ComponentCallbacks)}
+ * so it's trimmed on memory pressure. A tier should only be used by a single
+ * {@link RxObservableDiskCache}.
+ *
+ * @param <V> type of the data to store
+ * @param <P> type of the policy to store
+ * @author pakoito
+ */
+public class DirectMemoryTier<V, P> implements ComponentCallbacks2 {
+    private static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+
+    private static final int DEFAULT_SLAB_BLOCKS = 16;
+
+    private final int blockSize;
+
+    private final int maxBlocks;
+
+    private final int slabBlocks;
+
+    private final Func1<V, byte[]> serializer;
+
+    private final Func1<byte[], V> deserializer;
+
+    private final LinkedHashMap<String, Entry<P>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ByteBuffer[] slabs;
+
+    private final int[] freeBlocks;
+
+    /* Free blocks of the allocated slabs only */
+    private int freeCount;
+
+    private int allocatedBlocks;
+
+    DirectMemoryTier(int maxBytes, int blockSize, int slabBlocks, Func1<V, byte[]> serializer,
+            Func1<byte[], V> deserializer) {
+        if (maxBytes < blockSize) {
+            throw new IllegalArgumentException("maxBytes must hold at least one block of "
+                    + blockSize + " bytes");
+        }
+        this.blockSize = blockSize;
+        this.maxBlocks = maxBytes / blockSize;
+        this.slabBlocks = Math.min(slabBlocks, maxBlocks);
+        this.serializer = serializer;
+        this.deserializer = deserializer;
+        this.freeBlocks = new int[maxBlocks];
+        this.slabs = new ByteBuffer[(maxBlocks + this.slabBlocks - 1) / this.slabBlocks];
+    }
+
+    /**
+     * Creates a {@link DirectMemoryTier} with a maximum size, and the functions used to convert
+     * Values from and to bytes.
+     * <p/>
+     * The memory is allocated in slabs of 64KB as Values are written, and released when the tier
+     * is trimmed or cleared.
+     *
+     * @param maxBytes maximum amount of direct memory used by the tier
+     * @param serializer function to convert a Value to bytes
+     * @param deserializer function to convert bytes back to a Value
+     * @param <V> type of the data to store
+     * @param <P> type of the policy to store
+     * @return a new tier
+     */
+    public static <V, P> DirectMemoryTier<V, P> create(int maxBytes,
+            Func1<V, byte[]> serializer, Func1<byte[], V> deserializer) {
+        return new DirectMemoryTier<>(maxBytes, DEFAULT_BLOCK_SIZE, DEFAULT_SLAB_BLOCKS,
+                serializer, deserializer);
+    }
+
+    /**
+     * @return bytes currently used by stored Values, rounded up to the block size
+     */
+    public synchronized int size() {
+        return (allocatedBlocks - freeCount) * blockSize;
+    }
+
+    /**
+     * @return bytes of direct memory currently allocated, which are kept until the tier is trimmed
+     *         or cleared
+     */
+    public synchronized int allocatedSize() {
+        return allocatedBlocks * blockSize;
+    }
+
+    /**
+     * @return maximum bytes the tier can use
+     */
+    public int maxSize() {
+        return maxBlocks * blockSize;
+    }
+
+    /**
+     * Evicts the least recently used entries until the tier uses at most maxBytes, and releases
+     * the slabs no longer needed by the remaining ones.
+     *
+     * @param maxBytes size to trim to
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        final Iterator<Map.Entry<String, Entry<P>>> iterator = entries.entrySet().iterator();
+        while (size() > maxBytes && iterator.hasNext()) {
+            releaseBlocks(iterator.next().getValue());
+            iterator.remove();
+        }
+        releaseSlabs();
+    }
+
+    /**
+     * Removes all entries and releases the direct memory.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        Arrays.fill(slabs, null);
+        allocatedBlocks = 0;
+        freeCount = 0;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Not affected
+    }
+
+    Cached<V, P> get(String key) {
+        final byte[] bytes;
+        final P policy;
+        synchronized (this) {
+            final Entry<P> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            bytes = new byte[entry.length];
+            int offset = 0;
+            for (int block : entry.blocks) {
+                final int count = Math.min(blockSize, entry.length - offset);
+                positionBlock(block).get(bytes, offset, count);
+                offset += count;
+            }
+            policy = entry.policy;
+        }
+        return new Cached<>(deserializer.call(bytes), policy, true);
+    }
+
+    void put(String key, Cached<V, P> cached) {
+        final byte[] bytes = serializer.call(cached.value);
+        final int requiredBlocks = (bytes.length + blockSize - 1) / blockSize;
+        synchronized (this) {
+            remove(key);
+            if (requiredBlocks > maxBlocks) {
+                return;
+            }
+            /* Growing is preferred over evicting while under budget */
+            while (freeCount < requiredBlocks && allocatedBlocks < maxBlocks) {
+                allocateSlab();
+            }
+            final Iterator<Map.Entry<String, Entry<P>>> iterator = entries.entrySet().iterator();
+            while (freeCount < requiredBlocks && iterator.hasNext()) {
+                releaseBlocks(iterator.next().getValue());
+                iterator.remove();
+            }
+            final int[] blocks = new int[requiredBlocks];
+            int offset = 0;
+            for (int i = 0; i < requiredBlocks; i++) {
+                final int block = freeBlocks[--freeCount];
+                final int count = Math.min(blockSize, bytes.length - offset);
+                positionBlock(block).put(bytes, offset, count);
+                offset += count;
+                blocks[i] = block;
+            }
+            entries.put(key, new Entry<>(cached.policy, blocks, bytes.length));
+        }
+    }
+
+    synchronized void remove(String key) {
+        final Entry<P> entry = entries.remove(key);
+        if (entry != null) {
+            releaseBlocks(entry);
+        }
+    }
+
+    Observable<Cached<V, P>> read(final String key, final Func1<P, Boolean> policyValidator) {
+        return Observable.defer(new Func0<Observable<Cached<V, P>>>() {
+            @Override
+            public Observable<Cached<V, P>> call() {
+                final Cached<V, P> cached = get(key);
+                if (cached == null) {
+                    return Observable.empty();
+                }
+                if (!policyValidator.call(cached.policy)) {
+                    remove(key);
+                    return Observable.empty();
+                }
+                return Observable.just(cached);
+            }
+        });
+    }
+
+    Action1<Cached<V, P>> write(final String key) {
+        return new Action1<Cached<V, P>>() {
+            @Override
+            public void call(Cached<V, P> cached) {
+                put(key, cached);
+            }
+        };
+    }
+
+    private void releaseBlocks(Entry<P> entry) {
+        for (int block : entry.blocks) {
+            freeBlocks[freeCount++] = block;
+        }
+    }
+
+    private void allocateSlab() {
+        final int slab = allocatedBlocks / slabBlocks;
+        final int blocks = Math.min(slabBlocks, maxBlocks - allocatedBlocks);
+        slabs[slab] = ByteBuffer.allocateDirect(blocks * blockSize);
+        for (int i = blocks - 1; i >= 0; i--) {
+            freeBlocks[freeCount++] = allocatedBlocks + i;
+        }
+        allocatedBlocks += blocks;
+    }
+
+    /**
+     * Moves the blocks in use to the lowest slabs, and drops the slabs left empty after them.
+     */
+    private void releaseSlabs() {
+        final int usedBlocks = allocatedBlocks - freeCount;
+        final int keptSlabs = (usedBlocks + slabBlocks - 1) / slabBlocks;
+        final int keptBlocks = Math.min(keptSlabs * slabBlocks, maxBlocks);
+        if (keptBlocks == allocatedBlocks) {
+            return;
+        }
+        final boolean[] isUsed = new boolean[keptBlocks];
+        for (Entry<P> entry : entries.values()) {
+            for (int block : entry.blocks) {
+                if (block < keptBlocks) {
+                    isUsed[block] = true;
+                }
+            }
+        }
+        final byte[] buffer = new byte[blockSize];
+        int target = 0;
+        for (Entry<P> entry : entries.values()) {
+            for (int i = 0; i < entry.blocks.length; i++) {
+                if (entry.blocks[i] < keptBlocks) {
+                    continue;
+                }
+                while (isUsed[target]) {
+                    target++;
+                }
+                positionBlock(entry.blocks[i]).get(buffer);
+                positionBlock(target).put(buffer);
+                entry.blocks[i] = target;
+                isUsed[target] = true;
+            }
+        }
+        Arrays.fill(slabs, keptSlabs, slabs.length, null);
+        allocatedBlocks = keptBlocks;
+        freeCount = 0;
+        for (int block = keptBlocks - 1; block >= 0; block--) {
+            if (!isUsed[block]) {
+                freeBlocks[freeCount++] = block;
+            }
+        }
+    }
+
+    private ByteBuffer positionBlock(int block) {
+        final ByteBuffer slab = slabs[block / slabBlocks];
+        slab.position((block % slabBlocks) * blockSize);
+        return slab;
+    }
+
+    private static final class Entry<P> {
+        final P policy;
+
+        final int[] blocks;
+
+        final int length;
+
+        Entry(P policy, int[] blocks, int length) {
+            this.policy = policy;
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+}
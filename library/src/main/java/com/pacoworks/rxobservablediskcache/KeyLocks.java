@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import rx.Completable;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * Private class coordinating writes and reads of the same key for {@link RxObservableDiskCache}
+ * <p/>
+ * Keys are hashed into a fixed number of stripes. Writes take the stripe lock, so writes to the same
+ * key are applied one after the other while other stripes run in parallel. Each key also keeps a
+ * sequence that is odd while a write is in progress. Readers never take the lock: they note the
+ * sequence before reading and retry if it changed by the time they finish. A reader that finds a
+ * write in progress, or overlaps one, waits for it to finish before reading again.
+ * <p/>
+ * Sequences are kept in a fixed number of slots, hashed from the key name within its stripe. Keys
+ * sharing a slot also share a lock, so a slot is never written by two writes at once, and a write
+ * only causes an extra retry for reads of the other keys in its slot.
+ *
+ * @author pakoito
+ */
+class KeyLocks {
+    private static final int STRIPES = 64;
+
+    private static final int SLOTS_PER_STRIPE = 64;
+
+    private static final int MAX_READ_ATTEMPTS = 3;
+
+    private static final long ANY_SEQUENCE = -1;
+
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    private static final AtomicLongArray SEQUENCES = new AtomicLongArray(
+            STRIPES * SLOTS_PER_STRIPE);
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private KeyLocks() {
+        // No instances
+    }
+
+    static long sequence(String key) {
+        return SEQUENCES.get(slot(key));
+    }
+
+    static boolean isWriting(long sequence) {
+        return (sequence & 1) == 1;
+    }
+
+    static boolean isUnchanged(String key, long sequence) {
+        return !isWriting(sequence) && sequence(key) == sequence;
+    }
+
+    static Completable write(String key, Completable operation) {
+        return writeIfUnchanged(key, ANY_SEQUENCE, operation);
+    }
+
+    /**
+     * Runs operation while holding the key lock, or fails with {@link StaleReadException} if the
+     * key has been written since sequence was taken.
+     */
+    static Completable writeIfUnchanged(final String key, final long sequence,
+            final Completable operation) {
+        return Completable.fromAction(new Action0() {
+            @Override
+            public void call() {
+                final ReentrantLock lock = LOCKS[stripe(key)];
+                final int slot = slot(key);
+                lock.lock();
+                try {
+                    if (sequence != ANY_SEQUENCE && SEQUENCES.get(slot) != sequence) {
+                        throw new StaleReadException(key);
+                    }
+                    SEQUENCES.incrementAndGet(slot);
+                    try {
+                        operation.await();
+                    } finally {
+                        SEQUENCES.incrementAndGet(slot);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Retries a read that overlapped a write once the write has finished, and completes empty if it
+     * keeps overlapping new ones. Giving up is logged, as it's reported to the caller as a cache
+     * miss.
+     */
+    static <T> Observable<T> retryStaleReads(String key, Observable<T> read) {
+        /* Chained once per key, so a read that doesn't overlap any write allocates no retry state */
+        Observable<T> attempts = read.onErrorResumeNext(KeyLocks.<T> giveUp(key));
+        for (int attempt = 1; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            attempts = read.onErrorResumeNext(retryAfterWrite(key, attempts));
+        }
+        return attempts;
+    }
+
+    private static <T> Func1<Throwable, Observable<T>> retryAfterWrite(String key,
+            final Observable<T> retry) {
+        final Completable writeFinished = awaitWrite(key);
+        return new Func1<Throwable, Observable<T>>() {
+            @Override
+            public Observable<T> call(Throwable throwable) {
+                if (throwable instanceof StaleReadException) {
+                    return writeFinished.andThen(retry);
+                }
+                return Observable.error(throwable);
+            }
+        };
+    }
+
+    private static <T> Func1<Throwable, Observable<T>> giveUp(String key) {
+        final Action1<Throwable> logStaleRead = Logging.logStaleRead(key);
+        return new Func1<Throwable, Observable<T>>() {
+            @Override
+            public Observable<T> call(Throwable throwable) {
+                if (throwable instanceof StaleReadException) {
+                    logStaleRead.call(throwable);
+                    return Observable.empty();
+                }
+                return Observable.error(throwable);
+            }
+        };
+    }
+
+    /**
+     * Completes once no write holds the lock of the key, waiting on an io thread.
+     */
+    private static Completable awaitWrite(String key) {
+        final ReentrantLock lock = LOCKS[stripe(key)];
+        return Completable.fromAction(new Action0() {
+            @Override
+            public void call() {
+                lock.lock();
+                lock.unlock();
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    private static int stripe(String key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /* Within the stripe of the key, so the stripe lock guards every key of the slot */
+    private static int slot(String key) {
+        final int spread = key.hashCode() * 0x9E3779B9;
+        return stripe(key) * SLOTS_PER_STRIPE + (spread >>> 26);
+    }
+
+    /**
+     * Signals a read that overlapped a write of the same key.
+     */
+    static final class StaleReadException extends RuntimeException {
+        StaleReadException(String key) {
+            super("Concurrent write while reading " + key);
+        }
+    }
+}
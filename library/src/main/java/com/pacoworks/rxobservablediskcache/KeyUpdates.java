@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+import rx.subjects.BehaviorSubject;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Private class keeping one subject per observed key for {@link RxObservableDiskCache}
+ * <p/>
+ * Subjects are created on the first subscription, seeded once with the currently cached Value, and
+ * dropped when their last subscriber unsubscribes. A deleted key is published as null, so later
+ * subscribers don't get the deleted Value, and the last Value is only replayed to them if its
+ * Policy is still validated.
+ *
+ * @author pakoito
+ */
+class KeyUpdates<V, P> {
+    private final Map<String, BehaviorSubject<Cached<V, P>>> subjects = new HashMap<>();
+
+    private final Func1<Cached<V, P>, Boolean> isValid;
+
+    KeyUpdates(final Func1<P, Boolean> policyValidator) {
+        this.isValid = new Func1<Cached<V, P>, Boolean>() {
+            @Override
+            public Boolean call(Cached<V, P> cached) {
+                return cached != null && policyValidator.call(cached.policy);
+            }
+        };
+    }
+
+    Observable<Cached<V, P>> observe(final String key, final Observable<Cached<V, P>> currentValue) {
+        return Observable.create(new Observable.OnSubscribe<Cached<V, P>>() {
+            @Override
+            public void call(Subscriber<? super Cached<V, P>> subscriber) {
+                final BehaviorSubject<Cached<V, P>> subject;
+                final boolean isNew;
+                synchronized (KeyUpdates.this) {
+                    final BehaviorSubject<Cached<V, P>> existing = subjects.get(key);
+                    isNew = existing == null;
+                    subject = isNew ? BehaviorSubject.<Cached<V, P>> create() : existing;
+                    if (isNew) {
+                        subjects.put(key, subject);
+                    }
+                    subject.filter(isValid).unsafeSubscribe(subscriber);
+                }
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        release(key, subject);
+                    }
+                }));
+                if (isNew) {
+                    seed(subject, currentValue);
+                }
+            }
+        })
+                /* Updates are published while the key is locked, so subscribers are moved off that thread */
+                .onBackpressureLatest()
+                .observeOn(Schedulers.computation());
+    }
+
+    Action1<Cached<V, P>> publish(final String key) {
+        return new Action1<Cached<V, P>>() {
+            @Override
+            public void call(Cached<V, P> cached) {
+                publish(key, cached);
+            }
+        };
+    }
+
+    Action0 clear(final String key) {
+        return new Action0() {
+            @Override
+            public void call() {
+                publish(key, null);
+            }
+        };
+    }
+
+    private void publish(String key, Cached<V, P> cached) {
+        final BehaviorSubject<Cached<V, P>> subject;
+        synchronized (this) {
+            subject = subjects.get(key);
+        }
+        if (subject != null) {
+            synchronized (subject) {
+                subject.onNext(cached);
+            }
+        }
+    }
+
+    private void seed(final BehaviorSubject<Cached<V, P>> subject,
+            Observable<Cached<V, P>> currentValue) {
+        currentValue.subscribe(new Action1<Cached<V, P>>() {
+            @Override
+            public void call(Cached<V, P> cached) {
+                synchronized (subject) {
+                    /* A write that finished before the read must not be replaced by an older Value */
+                    if (!subject.hasValue()) {
+                        subject.onNext(cached);
+                    }
+                }
+            }
+        }, new Action1<Throwable>() {
+            @Override
+            public void call(Throwable throwable) {
+                // Already logged, observers will get the next write
+            }
+        });
+    }
+
+    private synchronized void release(String key, BehaviorSubject<Cached<V, P>> subject) {
+        if (!subject.hasObservers() && subjects.get(key) == subject) {
+            subjects.remove(key);
+        }
+    }
+}
@@ -36,10 +36,11 @@ class Logging {
     }
 
     static <V, P> Action1<Cached<V, P>> logCacheHit(final String key) {
+        final String message = "Cache hit: " + key;
         return new Action1<Cached<V, P>>() {
             @Override
             public void call(Cached<V, P> valuePolicyCached) {
-                Log.d(TAG, "Cache hit: " + key);
+                Log.d(TAG, message);
             }
         };
     }
@@ -48,18 +49,57 @@ class Logging {
         return new Action1<Throwable>() {
             @Override
             public void call(Throwable t) {
-                Log.e(TAG,
-                        String.format(Locale.US, "Cache miss: %s%nCaused by: %s", key,
-                                t.getMessage()));
+                if (Log.isLoggable(TAG, Log.ERROR)) {
+                    Log.e(TAG,
+                            String.format(Locale.US, "Cache miss: %s%nCaused by: %s", key,
+                                    t.getMessage()));
+                }
             }
         };
     }
 
     static Action0 logCacheInvalid(final String key) {
+        final String message = "Cache invalid: " + key;
         return new Action0() {
             @Override
             public void call() {
-                Log.d(TAG, "Cache invalid: " + key);
+                Log.d(TAG, message);
+            }
+        };
+    }
+
+    static Action0 logCacheMigrated(final String key) {
+        final String message = "Cache migrated: " + key;
+        return new Action0() {
+            @Override
+            public void call() {
+                Log.d(TAG, message);
+            }
+        };
+    }
+
+    static Action1<Throwable> logStaleRead(final String key) {
+        return new Action1<Throwable>() {
+            @Override
+            public void call(Throwable t) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG, String.format(Locale.US,
+                            "Cache miss after concurrent writes: %s%nCaused by: %s", key,
+                            t.getMessage()));
+                }
+            }
+        };
+    }
+
+    static Action1<Throwable> logRefreshFailed(final String key) {
+        return new Action1<Throwable>() {
+            @Override
+            public void call(Throwable t) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG,
+                            String.format(Locale.US, "Refresh failed: %s%nCaused by: %s", key,
+                                    t.getMessage()));
+                }
             }
         };
     }
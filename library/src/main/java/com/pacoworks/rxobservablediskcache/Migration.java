@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+/**
+ * Conversion of Values stored with a previous Policy, used by
+ * {@link RxObservableDiskCache#withMigration(Migration)} instead of deleting them.
+ *
+ * @param <V> type of the data to store
+ * @param <P> type of the policy to store
+ * @author pakoito
+ */
+public interface Migration<V, P> {
+    /**
+     * @param policy Policy that failed validation
+     * @return whether the Value stored with policy can be migrated
+     */
+    boolean canMigrate(P policy);
+
+    /**
+     * @param value Value stored with policy
+     * @param policy Policy that failed validation
+     * @return the Value converted to the current schema
+     */
+    V migrateValue(V value, P policy);
+
+    /**
+     * @param policy Policy that failed validation
+     * @return the Policy to store with the migrated Value
+     */
+    P migratePolicy(P policy);
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import com.pacoworks.rxpaper.RxPaperBook;
+
+import java.util.List;
+
+import rx.Completable;
+import rx.Single;
+
+/**
+ * Private class adapting a {@link RxPaperBook} to {@link Storage}
+ *
+ * @author pakoito
+ */
+final class PaperStorage implements Storage {
+    private final RxPaperBook book;
+
+    PaperStorage(RxPaperBook book) {
+        this.book = book;
+    }
+
+    @Override
+    public <T> Single<T> read(String key) {
+        return book.read(key);
+    }
+
+    @Override
+    public Completable write(String key, Object value) {
+        return book.write(key, value);
+    }
+
+    @Override
+    public Completable delete(String key) {
+        return book.delete(key);
+    }
+
+    @Override
+    public Single<Boolean> exists(String key) {
+        return book.exists(key);
+    }
+
+    @Override
+    public Single<List<String>> keys() {
+        return book.keys();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Single;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.CompositeSubscription;
+
+/**
+ * Refreshes frequently read keys of a {@link RxObservableDiskCache} shortly before their Policy
+ * expires, so their next read doesn't find them expired.
+ * <p/>
+ * Only keys registered with an upstream factory are tracked. Reads are counted when they go
+ * through {@link #transform(Single, String)}, and the counts are halved on every check so they
+ * reflect recent use. Refreshes run one at a time on a low priority scheduler, and are written
+ * through the same path as any other Value.
+ * <p/>
+ * Call {@link #stop()} once it's not required anymore, to release its thread.
+ *
+ * @param <V> type of the data to store
+ * @param <P> type of the policy to store
+ * @author pakoito
+ */
+public class RefreshAhead<V, P> {
+    private final RxObservableDiskCache<V, P> cache;
+
+    private final Func1<P, Long> expiration;
+
+    private final long refreshWindowMillis;
+
+    private final int minReads;
+
+    private final Scheduler scheduler;
+
+    /* Only set when the thread was created by this instance */
+    private final ExecutorService executor;
+
+    private final Map<String, KeyState<V>> keys = new ConcurrentHashMap<>();
+
+    private final CompositeSubscription checks = new CompositeSubscription();
+
+    RefreshAhead(RxObservableDiskCache<V, P> cache, Func1<P, Long> expiration,
+            long refreshWindowMillis, int minReads, Scheduler scheduler,
+            ExecutorService executor) {
+        this.cache = cache;
+        this.expiration = expiration;
+        this.refreshWindowMillis = refreshWindowMillis;
+        this.minReads = minReads;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a {@link RefreshAhead} for a cache, running on its own background priority daemon
+     * thread. The thread is released by {@link #stop()}.
+     *
+     * @param cache cache to refresh
+     * @param expiration method to get the time in milliseconds when a Policy expires
+     * @param refreshWindowMillis time before the expiration when a key can be refreshed
+     * @param minReads reads required for a key to be refreshed
+     * @param <V> type of the data to store
+     * @param <P> type of the policy to store
+     * @return a new {@link RefreshAhead}, call {@link #start(long)} to begin refreshing
+     */
+    public static <V, P> RefreshAhead<V, P> create(RxObservableDiskCache<V, P> cache,
+            Func1<P, Long> expiration, long refreshWindowMillis, int minReads) {
+        final ExecutorService executor = Executors
+                .newSingleThreadExecutor(new BackgroundThreadFactory());
+        return new RefreshAhead<>(cache, expiration, refreshWindowMillis, minReads,
+                Schedulers.from(executor), executor);
+    }
+
+    /**
+     * Creates a {@link RefreshAhead} for a cache.
+     *
+     * @param cache cache to refresh
+     * @param expiration method to get the time in milliseconds when a Policy expires
+     * @param refreshWindowMillis time before the expiration when a key can be refreshed
+     * @param minReads reads required for a key to be refreshed
+     * @param scheduler scheduler where checks and refreshes are run
+     * @param <V> type of the data to store
+     * @param <P> type of the policy to store
+     * @return a new {@link RefreshAhead}, call {@link #start(long)} to begin refreshing
+     */
+    public static <V, P> RefreshAhead<V, P> create(RxObservableDiskCache<V, P> cache,
+            Func1<P, Long> expiration, long refreshWindowMillis, int minReads,
+            Scheduler scheduler) {
+        return new RefreshAhead<>(cache, expiration, refreshWindowMillis, minReads, scheduler,
+                null);
+    }
+
+    /**
+     * Registers the operation used to refresh a key.
+     *
+     * @param key string value under where the values are stored
+     * @param upstream lazy method to construct the operation whose result is cached
+     */
+    public void register(String key, Func0<Single<V>> upstream) {
+        keys.put(key, new KeyState<>(upstream));
+    }
+
+    /**
+     * Stops tracking and refreshing a key.
+     *
+     * @param key string value under where the values are stored
+     */
+    public void unregister(String key) {
+        keys.remove(key);
+    }
+
+    /**
+     * Same as {@link RxObservableDiskCache#transform(Single, String)}, counting the read and
+     * tracking the expiration of the key if it's registered.
+     *
+     * @param single {@link Single} operation whose result is to be cached
+     * @param key string value under where the values will be stored
+     * @return an {@link Observable} that will return a cached Value followed by the result of
+     *         executing single
+     */
+    public Observable<Cached<V, P>> transform(Single<V> single, String key) {
+        final KeyState<V> state = keys.get(key);
+        if (state == null) {
+            return cache.transform(single, key);
+        }
+        state.reads.incrementAndGet();
+        return cache.transform(single, key).doOnNext(trackExpiration(state));
+    }
+
+    /**
+     * Starts checking periodically for keys to refresh.
+     *
+     * @param periodMillis time between checks
+     * @return {@link Subscription} to stop checking
+     */
+    public Subscription start(long periodMillis) {
+        final Subscription subscription = Observable
+                .interval(periodMillis, TimeUnit.MILLISECONDS, scheduler)
+                .onBackpressureDrop()
+                .concatMap(new Func1<Long, Observable<Cached<V, P>>>() {
+                    @Override
+                    public Observable<Cached<V, P>> call(Long tick) {
+                        return Observable.from(findKeysToRefresh(System.currentTimeMillis()))
+                                .concatMap(new Func1<String, Observable<Cached<V, P>>>() {
+                                    @Override
+                                    public Observable<Cached<V, P>> call(String key) {
+                                        return refresh(key);
+                                    }
+                                });
+                    }
+                })
+                .subscribe();
+        checks.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Stops all periodic checks, and releases the thread created by
+     * {@link #create(RxObservableDiskCache, Func1, long, int)}. It can't be started again
+     * afterwards.
+     */
+    public void stop() {
+        checks.unsubscribe();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    List<String> findKeysToRefresh(long nowMillis) {
+        final List<String> due = new ArrayList<>();
+        for (Map.Entry<String, KeyState<V>> entry : keys.entrySet()) {
+            final KeyState<V> state = entry.getValue();
+            /* Halving on every check keeps the count weighted towards recent reads, down to 0 */
+            int reads;
+            do {
+                reads = state.reads.get();
+            } while (!state.reads.compareAndSet(reads, reads >>> 1));
+            if (reads >= minReads && state.expiresAtMillis - nowMillis <= refreshWindowMillis
+                    && !state.isRefreshing.get()) {
+                due.add(entry.getKey());
+            }
+        }
+        return due;
+    }
+
+    private Observable<Cached<V, P>> refresh(final String key) {
+        final KeyState<V> state = keys.get(key);
+        if (state == null || !state.isRefreshing.compareAndSet(false, true)) {
+            return Observable.empty();
+        }
+        final Action0 finishRefresh = new Action0() {
+            @Override
+            public void call() {
+                state.isRefreshing.set(false);
+            }
+        };
+        return Observable
+                .defer(new Func0<Observable<Cached<V, P>>>() {
+                    @Override
+                    public Observable<Cached<V, P>> call() {
+                        return cache.refresh(state.upstream.call(), key);
+                    }
+                })
+                .doOnNext(trackExpiration(state))
+                .doOnError(Logging.logRefreshFailed(key))
+                .onErrorResumeNext(Observable.<Cached<V, P>> empty())
+                .doOnTerminate(finishRefresh)
+                /* Stopping the checks must not leave the key marked as refreshing */
+                .doOnUnsubscribe(finishRefresh);
+    }
+
+    private Action1<Cached<V, P>> trackExpiration(final KeyState<V> state) {
+        return new Action1<Cached<V, P>>() {
+            @Override
+            public void call(Cached<V, P> cached) {
+                state.expiresAtMillis = expiration.call(cached.policy);
+            }
+        };
+    }
+
+    private static final class KeyState<V> {
+        final Func0<Single<V>> upstream;
+
+        final AtomicInteger reads = new AtomicInteger();
+
+        final AtomicBoolean isRefreshing = new AtomicBoolean();
+
+        /* Unknown until the key is read, so it's not refreshed before */
+        volatile long expiresAtMillis = Long.MAX_VALUE;
+
+        KeyState(Func0<Single<V>> upstream) {
+            this.upstream = upstream;
+        }
+    }
+
+    private static final class BackgroundThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "RxObservableDiskCache-RefreshAhead");
+            /* Doesn't keep the process alive if stop() is never called */
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
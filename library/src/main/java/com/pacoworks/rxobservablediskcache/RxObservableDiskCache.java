@@ -17,13 +17,24 @@
 package com.pacoworks.rxobservablediskcache;
 
 import android.content.Context;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import com.pacoworks.rxpaper.RxPaperBook;
 
 import rx.Completable;
 import rx.Observable;
 import rx.Single;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Actions;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.functions.Func2;
 
 /**
  * Static methods to add disk caching behaviour to {@link Single} objects.
@@ -38,17 +49,47 @@ import rx.functions.Func1;
 public class RxObservableDiskCache<V, P> {
     private static final String POLICY_APPEND = "_policy";
 
-    private final RxPaperBook book;
+    private static final int MAX_KEY_PIPELINES = 64;
+
+    private final Storage book;
 
     private final Func1<V, P> policyCreator;
 
     private final Func1<P, Boolean> policyValidator;
 
-    RxObservableDiskCache(RxPaperBook book, Func1<V, P> policyCreator,
+    private final Func1<V, Cached<V, P>> observableCachedCreator;
+
+    private final DirectMemoryTier<V, P> memoryTier;
+
+    private final Func1<V, byte[]> deduplicationSerializer;
+
+    private final Migration<V, P> migration;
+
+    private final StatsRecorder<V, P> stats;
+
+    private final LruCache<String, KeyPipeline> keyPipelines;
+
+    private final KeyUpdates<V, P> keyUpdates;
+
+    RxObservableDiskCache(Storage book, Func1<V, P> policyCreator,
             Func1<P, Boolean> policyValidator) {
+        this(book, policyCreator, policyValidator, null, null, null, null);
+    }
+
+    RxObservableDiskCache(Storage book, Func1<V, P> policyCreator,
+            Func1<P, Boolean> policyValidator, DirectMemoryTier<V, P> memoryTier,
+            Func1<V, byte[]> deduplicationSerializer, Migration<V, P> migration,
+            StatsRecorder<V, P> stats) {
         this.book = book;
         this.policyValidator = policyValidator;
         this.policyCreator = policyCreator;
+        this.memoryTier = memoryTier;
+        this.deduplicationSerializer = deduplicationSerializer;
+        this.migration = migration;
+        this.stats = stats;
+        this.observableCachedCreator = createObservableCached(policyCreator);
+        this.keyPipelines = new LruCache<>(MAX_KEY_PIPELINES);
+        this.keyUpdates = new KeyUpdates<>(policyValidator);
     }
 
     /**
@@ -61,7 +102,8 @@ public class RxObservableDiskCache<V, P> {
      */
     public static <V, P> RxObservableDiskCache<V, P> create(
             RxPaperBook book, Func1<V, P> policyCreator, Func1<P, Boolean> policyValidator) {
-        return new RxObservableDiskCache<>(book, policyCreator, policyValidator);
+        return new RxObservableDiskCache<>(new PaperStorage(book), policyCreator,
+                policyValidator);
     }
 
     /**
@@ -110,35 +152,27 @@ public class RxObservableDiskCache<V, P> {
     public static <V, P> Observable<Cached<V, P>> transform(
             final Single<V> single, final String key, final RxPaperBook paperBook,
             final Func1<V, P> policyCreator, final Func1<P, Boolean> policyValidator) {
+        final Storage storage = new PaperStorage(paperBook);
         return Observable
                 /* Errors require being delayed so the cached subscription is completed even if the remote one fails */
                 .concatDelayError(
-                        RxObservableDiskCache.<V, P>requestCachedValue(key, paperBook, policyValidator),
-                        RxObservableDiskCache.<V, P>requestFreshValue(single, key, paperBook, policyCreator));
+                        RxObservableDiskCache.<V, P>requestCachedValue(key, storage, policyValidator),
+                        RxObservableDiskCache.<V, P>requestFreshValue(single, key, storage, policyCreator));
     }
 
     private static <V, P> Observable<Cached<V, P>> requestCachedValue(
-            final String key, final RxPaperBook cache, Func1<P, Boolean> policyValidator) {
-        return cache
-                .<P> read(composePolicyKey(key))
-                .toObservable()
-                .filter(policyValidator)
-                .switchIfEmpty(
-                        RxObservableDiskCache.<P> deleteValueAndPolicy(key, cache)
-                                .doOnCompleted(Logging.logCacheInvalid(key)))
-                .flatMap(RxObservableDiskCache.<V, P> readValue(key, cache))
-                .doOnNext(Logging.<V, P> logCacheHit(key))
-                .doOnError(Logging.<V, P> logCacheMiss(key))
-                .onErrorResumeNext(RxObservableDiskCache.<V, P> handleErrors(key, cache));
+            final String key, final Storage cache, Func1<P, Boolean> policyValidator) {
+        return new KeyReader<>(key, cache, policyValidator,
+                RxObservableDiskCache.<V, P> readValue(key, cache), null, null,
+                deleteValueAndPolicy(key, cache), Actions.empty()).cachedValue;
     }
 
-    private static <P> Observable<P> deleteValueAndPolicy(String key, RxPaperBook cache) {
-        return Completable.mergeDelayError(cache.delete(key), cache.delete(composePolicyKey(key)))
-                .toObservable();
+    private static Completable deleteValueAndPolicy(String key, Storage cache) {
+        return Completable.mergeDelayError(cache.delete(key), cache.delete(composePolicyKey(key)));
     }
 
     private static <V, P> Func1<P, Observable<Cached<V, P>>> readValue(
-            final String key, final RxPaperBook cache) {
+            final String key, final Storage cache) {
         return new Func1<P, Observable<Cached<V, P>>>() {
             @Override
             public Observable<Cached<V, P>> call(final P policy) {
@@ -149,50 +183,84 @@ public class RxObservableDiskCache<V, P> {
         };
     }
 
-    private static <V, P> Func1<Throwable, Observable<Cached<V, P>>> handleErrors(
-            final String key, final RxPaperBook cache) {
-        return new Func1<Throwable, Observable<Cached<V, P>>>() {
-            @Override
-            public Observable<Cached<V, P>> call(final Throwable throwable) {
-                return RxObservableDiskCache.<Cached<V, P>> deleteValueAndPolicy(key, cache)
-                        .flatMap(
-                                new Func1<Cached<V, P>, Observable<Cached<V, P>>>() {
-                                    @Override
-                                    public Observable<Cached<V, P>> call(
-                                            Cached<V, P> valuePolicyCached) {
-                                        return Observable.error(throwable);
-                                    }
-                                });
-            }
-        };
-    }
-
     private static <V, P> Observable<Cached<V, P>> requestFreshValue(
-            Single<V> single, String key, RxPaperBook cache, Func1<V, P> policyCreator) {
+            Single<V> single, String key, Storage cache, Func1<V, P> policyCreator) {
         return single.toObservable()
                 .map(createObservableCached(policyCreator))
-                .flatMap(RxObservableDiskCache.<V, P> toStoreKeyAndValue(key, cache));
+                .flatMap(RxObservableDiskCache.<V, P> toStoreKeyAndValue(key, RxObservableDiskCache
+                        .writeValue(key, cache, RxObservableDiskCache.<V, P> ignoreWritten())));
     }
 
     private static <V, P> Func1<Cached<V, P>, Observable<Cached<V, P>>> toStoreKeyAndValue(
-            final String key, final RxPaperBook cache) {
+            final String key, final Func1<Cached<V, P>, Completable> valueWriter) {
         return new Func1<Cached<V, P>, Observable<Cached<V, P>>>() {
             @Override
             public Observable<Cached<V, P>> call(final Cached<V, P> ktCached) {
+                return KeyLocks.write(key, valueWriter.call(ktCached))
+                        .andThen(Observable.just(ktCached));
+            }
+        };
+    }
+
+    private static <V, P> Func1<Cached<V, P>, Completable> writeValue(
+            final String key, final Storage cache, final Action1<Cached<V, P>> onWritten) {
+        final String policyKey = composePolicyKey(key);
+        return new Func1<Cached<V, P>, Completable>() {
+            @Override
+            public Completable call(final Cached<V, P> ktCached) {
                 return Completable
                         .mergeDelayError(
                                 cache.write(key, ktCached.value),
-                                cache.write(composePolicyKey(key), ktCached.policy))
-                        .andThen(Observable.just(ktCached));
+                                cache.write(policyKey, ktCached.policy))
+                        .doOnCompleted(notifyWritten(onWritten, ktCached));
+            }
+        };
+    }
+
+    private static <V, P> Action1<Cached<V, P>> ignoreWritten() {
+        return Actions.empty();
+    }
+
+    private static <V, P> Action1<Cached<V, P>> both(final Action1<Cached<V, P>> first,
+            final Action1<Cached<V, P>> second) {
+        return new Action1<Cached<V, P>>() {
+            @Override
+            public void call(Cached<V, P> cached) {
+                first.call(cached);
+                second.call(cached);
             }
         };
     }
 
-    private static String composePolicyKey(String key) {
+    static <V, P> Action0 notifyWritten(final Action1<Cached<V, P>> onWritten,
+            final Cached<V, P> cached) {
+        return new Action0() {
+            @Override
+            public void call() {
+                onWritten.call(cached);
+            }
+        };
+    }
+
+    static String composePolicyKey(String key) {
         return key + POLICY_APPEND;
     }
 
-    private static <V, P> Func1<V, Cached<V, P>> createDiskCached(
+    /**
+     * @return the keys from a book that have both a Value and a Policy stored
+     */
+    private static List<String> findEntryKeys(List<String> keys) {
+        final Set<String> allKeys = new HashSet<>(keys);
+        final List<String> entryKeys = new ArrayList<>();
+        for (String key : keys) {
+            if (allKeys.contains(composePolicyKey(key))) {
+                entryKeys.add(key);
+            }
+        }
+        return entryKeys;
+    }
+
+    static <V, P> Func1<V, Cached<V, P>> createDiskCached(
             final P policy) {
         return new Func1<V, Cached<V, P>>() {
             @Override
@@ -212,6 +280,182 @@ public class RxObservableDiskCache<V, P> {
         };
     }
 
+    /**
+     * Creates a copy of this {@link RxObservableDiskCache} that checks a {@link DirectMemoryTier}
+     * before reading from disk, and keeps it updated with every Value written.
+     * <p/>
+     * Values read from disk are not added to the tier, so a slower read never replaces a newer
+     * write. A key is only served from memory once it has been written by this cache.
+     *
+     * @param tier memory tier used only by this cache
+     * @return a new {@link RxObservableDiskCache} with the same book and Policy functions
+     */
+    public RxObservableDiskCache<V, P> withMemoryTier(DirectMemoryTier<V, P> tier) {
+        return new RxObservableDiskCache<>(book, policyCreator, policyValidator, tier,
+                deduplicationSerializer, migration, stats);
+    }
+
+    /**
+     * Creates a copy of this {@link RxObservableDiskCache} that stores each distinct Value only once,
+     * under a hash of its serialized bytes. Every key then holds a small reference to it alongside
+     * its Policy.
+     * <p/>
+     * The serialized bytes must identify the Value exactly, as Values with the same bytes are stored
+     * only once and every key referencing them reads the one stored first. Use a complete
+     * serialization rather than a summary such as {@link Object#toString()}.
+     * <p/>
+     * Keys written with deduplication must only be read by deduplicating caches. A cache without it,
+     * or the static {@link #transform(Single, String, RxPaperBook, Func1, Func1)}, would return the
+     * internal reference in place of the Value, failing with a {@link ClassCastException} in the
+     * subscriber.
+     * <p/>
+     * Values are not deleted when no key references them anymore, call {@link #collectGarbage()}
+     * periodically to remove them.
+     *
+     * @param serializer function to convert a Value to the bytes it's identified by
+     * @return a new {@link RxObservableDiskCache} with the same book and Policy functions
+     */
+    public RxObservableDiskCache<V, P> withDeduplication(Func1<V, byte[]> serializer) {
+        return new RxObservableDiskCache<>(book, policyCreator, policyValidator, memoryTier,
+                serializer, migration, stats);
+    }
+
+    /**
+     * Creates a copy of this {@link RxObservableDiskCache} that migrates Values whose Policy is not
+     * validated, instead of deleting them.
+     * <p/>
+     * Migrations run lazily when a key is read, and the migrated Value and Policy are written back.
+     * If the migrated Policy is still not validated the entry is deleted as usual. Use
+     * {@link #migrateAll(String, Class)} to migrate every entry ahead of time.
+     *
+     * @param migration conversion from previous Values and Policies to the current ones
+     * @return a new {@link RxObservableDiskCache} with the same book and Policy functions
+     */
+    public RxObservableDiskCache<V, P> withMigration(Migration<V, P> migration) {
+        return new RxObservableDiskCache<>(book, policyCreator, policyValidator, memoryTier,
+                deduplicationSerializer, migration, stats);
+    }
+
+    /**
+     * Creates a copy of this {@link RxObservableDiskCache} that keeps statistics of its reads and
+     * writes, available with {@link #stats()}.
+     *
+     * @return a new {@link RxObservableDiskCache} with the same book and Policy functions
+     */
+    public RxObservableDiskCache<V, P> withStats() {
+        return withStats(null, null);
+    }
+
+    /**
+     * Creates a copy of this {@link RxObservableDiskCache} that keeps statistics of its reads and
+     * writes, including the age of the Values read and the size of the Values written.
+     *
+     * @param policyTimestamp method to get the time in milliseconds when a Policy was created
+     * @param valueSize method to get the size in bytes of a Value
+     * @return a new {@link RxObservableDiskCache} with the same book and Policy functions
+     */
+    public RxObservableDiskCache<V, P> withStats(Func1<P, Long> policyTimestamp,
+            Func1<V, Integer> valueSize) {
+        return new RxObservableDiskCache<>(book, policyCreator, policyValidator, memoryTier,
+                deduplicationSerializer, migration,
+                new StatsRecorder<>(policyTimestamp, valueSize));
+    }
+
+    /**
+     * @return a snapshot of the statistics of this cache, including its most read keys
+     * @throws IllegalStateException if the cache was not created with {@link #withStats()}
+     */
+    public CacheStats stats() {
+        return stats(StatsRecorder.MAX_HOT_KEYS);
+    }
+
+    /**
+     * @param topN maximum number of most read keys to report, up to 32
+     * @return a snapshot of the statistics of this cache
+     * @throws IllegalArgumentException if topN is negative
+     * @throws IllegalStateException if the cache was not created with {@link #withStats()}
+     */
+    public CacheStats stats(int topN) {
+        if (topN < 0) {
+            throw new IllegalArgumentException("topN must not be negative, was " + topN);
+        }
+        if (stats == null) {
+            throw new IllegalStateException("Statistics are not enabled, use withStats()");
+        }
+        return stats.snapshot(topN);
+    }
+
+    /**
+     * Checks the Policy of every entry of this cache in the book, and reads the Values of the ones
+     * that aren't validated to migrate them if they can be migrated, or delete them otherwise.
+     * <p/>
+     * Books are commonly shared between caches, so only the keys starting with keyPrefix and whose
+     * stored Policy is a policyClass are checked. Any other entry, including the ones whose Policy
+     * can't be read, is left untouched.
+     * <p/>
+     * Entries are checked one at a time, so it can be run as a low priority background task after an
+     * update.
+     *
+     * @param keyPrefix prefix of the keys stored by this cache, empty to check every key
+     * @param policyClass class of the Policies stored by this cache
+     * @return a {@link Completable} that finishes once every entry has been checked
+     */
+    public Completable migrateAll(final String keyPrefix, final Class<P> policyClass) {
+        return book.keys()
+                .toObservable()
+                .flatMapIterable(new Func1<List<String>, Iterable<String>>() {
+                    @Override
+                    public Iterable<String> call(List<String> keys) {
+                        return findEntryKeys(keys);
+                    }
+                })
+                .filter(new Func1<String, Boolean>() {
+                    @Override
+                    public Boolean call(String key) {
+                        return key.startsWith(keyPrefix);
+                    }
+                })
+                .concatMap(new Func1<String, Observable<Cached<V, P>>>() {
+                    @Override
+                    public Observable<Cached<V, P>> call(final String key) {
+                        return book.<Object> read(composePolicyKey(key))
+                                .toObservable()
+                                .onErrorResumeNext(Observable.<Object> empty())
+                                .filter(new Func1<Object, Boolean>() {
+                                    @Override
+                                    public Boolean call(Object policy) {
+                                        /* Valid entries need no migration, so their Values aren't read */
+                                        return policyClass.isInstance(policy)
+                                                && !policyValidator.call(policyClass.cast(policy));
+                                    }
+                                })
+                                .flatMap(new Func1<Object, Observable<Cached<V, P>>>() {
+                                    @Override
+                                    public Observable<Cached<V, P>> call(Object policy) {
+                                        /* Not kept in keyPipelines, so it doesn't evict hot keys */
+                                        return new KeyPipeline(key).uncountedValue
+                                                /* Failures were already logged and deleted */
+                                                .onErrorResumeNext(Observable.<Cached<V, P>> empty());
+                                    }
+                                });
+                    }
+                })
+                .toCompletable();
+    }
+
+    /**
+     * Deletes the deduplicated Values that aren't referenced by any key of the book.
+     * <p/>
+     * It can run while the cache is in use: Values written after the collection started are
+     * kept until the next one. Only keys written with deduplication are read to find references,
+     * and if any of them can't be read the collection fails without deleting any Value.
+     *
+     * @return a {@link Completable} that finishes once all unreferenced Values are deleted
+     */
+    public Completable collectGarbage() {
+        return Deduplication.collectGarbage(book);
+    }
+
     /**
      * Transforms a {@link Single} into an {@link Observable} returning a disk cached version of the
      * latest Value seen for the same key followed by the {@link Single} result.
@@ -226,6 +470,296 @@ public class RxObservableDiskCache<V, P> {
      *         executing single
      */
     public Observable<Cached<V, P>> transform(Single<V> single, String key) {
-        return transform(single, key, book, policyCreator, policyValidator);
+        final KeyPipeline pipeline = getKeyPipeline(key);
+        return Observable
+                /* Errors require being delayed so the cached subscription is completed even if the remote one fails */
+                .concatDelayError(
+                        pipeline.cachedValue,
+                        single.toObservable()
+                                .map(observableCachedCreator)
+                                .flatMap(pipeline.storeKeyAndValue));
+    }
+
+    /**
+     * Writes the result of single for a key through the same path as
+     * {@link #transform(Single, String)}, without reading the currently cached Value.
+     */
+    Observable<Cached<V, P>> refresh(Single<V> single, String key) {
+        return single.toObservable()
+                .map(observableCachedCreator)
+                .flatMap(getKeyPipeline(key).storeKeyAndValue);
+    }
+
+    /**
+     * Observes the Value stored under a key.
+     * <p/>
+     * It emits the currently cached Value, if any is available and its Policy is validated,
+     * followed by every Value written for the key by {@link #transform(Single, String)} on this
+     * instance. Updates are shared between all observers of the same key, and don't require reading
+     * from disk again. The latest update is only replayed to a new observer if its Policy is still
+     * validated and the key hasn't been deleted since.
+     *
+     * @param key string value under where the values are stored
+     * @return an {@link Observable} that never completes, emitting the cached Value and its updates
+     */
+    public Observable<Cached<V, P>> observe(String key) {
+        return keyUpdates.observe(key, getKeyPipeline(key).cachedValue);
+    }
+
+    private KeyPipeline getKeyPipeline(String key) {
+        final KeyPipeline cached = keyPipelines.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final KeyPipeline created = new KeyPipeline(key);
+        keyPipelines.put(key, created);
+        return created;
+    }
+
+    /**
+     * Operator chains for a single key, assembled once and reused by every {@link #transform(Single, String)}
+     * call for it. RxPaper operations are cold, so the same chain can be subscribed to repeatedly.
+     */
+    private final class KeyPipeline {
+        final Observable<Cached<V, P>> cachedValue;
+
+        /* Same as cachedValue, for reads that shouldn't count in the statistics */
+        final Observable<Cached<V, P>> uncountedValue;
+
+        final Func1<Cached<V, P>, Observable<Cached<V, P>>> storeKeyAndValue;
+
+        KeyPipeline(String key) {
+            /* Runs while holding the key lock, so it sees writes in the order they were applied */
+            Action1<Cached<V, P>> onWritten = keyUpdates.publish(key);
+            if (memoryTier != null) {
+                onWritten = both(memoryTier.write(key), onWritten);
+            }
+            if (stats != null) {
+                onWritten = both(stats.recordWrite(key), onWritten);
+            }
+            final Func1<P, Observable<Cached<V, P>>> valueReader;
+            final Func1<Cached<V, P>, Completable> valueWriter;
+            final Completable entryDeleter;
+            if (deduplicationSerializer == null) {
+                valueReader = RxObservableDiskCache.readValue(key, book);
+                valueWriter = RxObservableDiskCache.writeValue(key, book, onWritten);
+                entryDeleter = RxObservableDiskCache.deleteValueAndPolicy(key, book);
+            } else {
+                valueReader = Deduplication.readValue(key, book);
+                valueWriter = Deduplication.writeValue(key, book, deduplicationSerializer,
+                        onWritten);
+                entryDeleter = Deduplication.deleteValue(key, book);
+            }
+            final Observable<Cached<V, P>> diskValue = new KeyReader<>(key, book, policyValidator,
+                    valueReader, migration, valueWriter, entryDeleter, keyUpdates.clear(key))
+                            .cachedValue;
+            this.storeKeyAndValue = RxObservableDiskCache.toStoreKeyAndValue(key, valueWriter);
+            if (memoryTier == null) {
+                this.uncountedValue = diskValue;
+            } else {
+                this.uncountedValue = memoryTier.read(key, policyValidator)
+                        .doOnNext(Logging.<V, P> logCacheHit(key))
+                        .switchIfEmpty(diskValue);
+            }
+            if (stats == null) {
+                this.cachedValue = uncountedValue;
+            } else {
+                final StatsRecorder<V, P>.Miss recordMiss = stats.recordMiss(key);
+                this.cachedValue = uncountedValue
+                        .doOnNext(stats.recordHit(key))
+                        .doOnError(recordMiss)
+                        .switchIfEmpty(Observable.<Cached<V, P>> empty().doOnCompleted(recordMiss));
+            }
+        }
+    }
+
+    /**
+     * Reads the cached Value of a key, validating its Policy and migrating or deleting it if it's
+     * not validated.
+     * <p/>
+     * Its functions are built once per key. Every subscription only allocates a {@link ReadAttempt}
+     * holding the sequence of the key when the read started.
+     */
+    private static final class KeyReader<V, P>
+            implements Func0<Observable<Cached<V, P>>>, Func1<P, Observable<Cached<V, P>>> {
+        private static final Func2<Boolean, Boolean, Boolean> BOTH = new Func2<Boolean, Boolean, Boolean>() {
+            @Override
+            public Boolean call(Boolean first, Boolean second) {
+                return first && second;
+            }
+        };
+
+        final Observable<Cached<V, P>> cachedValue;
+
+        private final String key;
+
+        private final String policyKey;
+
+        private final Storage cache;
+
+        private final Func1<P, Boolean> policyValidator;
+
+        private final Func1<P, Observable<Cached<V, P>>> valueReader;
+
+        private final Migration<V, P> migration;
+
+        private final Func1<Cached<V, P>, Completable> valueWriter;
+
+        private final Action1<Cached<V, P>> logCacheHit;
+
+        private final Action1<Throwable> logCacheMiss;
+
+        private final Action0 logCacheInvalid;
+
+        private final Action0 logCacheMigrated;
+
+        /* Notifies the deletion while still holding the key lock */
+        private final Completable entryDeleter;
+
+        KeyReader(String key, Storage cache, Func1<P, Boolean> policyValidator,
+                Func1<P, Observable<Cached<V, P>>> valueReader, Migration<V, P> migration,
+                Func1<Cached<V, P>, Completable> valueWriter, Completable entryDeleter,
+                Action0 onDeleted) {
+            this.key = key;
+            this.policyKey = composePolicyKey(key);
+            this.cache = cache;
+            this.policyValidator = policyValidator;
+            this.valueReader = valueReader;
+            this.migration = migration;
+            this.valueWriter = valueWriter;
+            this.logCacheHit = Logging.logCacheHit(key);
+            this.logCacheMiss = Logging.logCacheMiss(key);
+            this.logCacheInvalid = Logging.logCacheInvalid(key);
+            this.logCacheMigrated = Logging.logCacheMigrated(key);
+            this.entryDeleter = entryDeleter.doOnCompleted(onDeleted);
+            this.cachedValue = KeyLocks.retryStaleReads(key, Observable.defer(this));
+        }
+
+        @Override
+        public Observable<Cached<V, P>> call() {
+            /* A read is only valid if no write to the same key happened while it ran */
+            final long sequence = KeyLocks.sequence(key);
+            if (KeyLocks.isWriting(sequence)) {
+                /* It would overlap the write, so it's retried once the write finishes */
+                return Observable.error(new KeyLocks.StaleReadException(key));
+            }
+            final ReadAttempt attempt = new ReadAttempt(sequence);
+            return cache
+                    .<P> read(policyKey)
+                    .toObservable()
+                    .flatMap(this)
+                    .doOnNext(attempt)
+                    .doOnNext(logCacheHit)
+                    .onErrorResumeNext(attempt);
+        }
+
+        /* Runs while holding the key lock, unless the key was written since sequence was taken */
+        private Observable<Cached<V, P>> deleteEntry(long sequence) {
+            return KeyLocks.writeIfUnchanged(key, sequence, entryDeleter).toObservable();
+        }
+
+        private Observable<Boolean> isStored() {
+            return Single.zip(cache.exists(key), cache.exists(policyKey), BOTH).toObservable();
+        }
+
+        @Override
+        public Observable<Cached<V, P>> call(P policy) {
+            if (policyValidator.call(policy)) {
+                return valueReader.call(policy);
+            }
+            /* Migrating or deleting depends on the sequence, so the attempt takes over */
+            return Observable.error(new InvalidPolicyException(policy));
+        }
+
+        /**
+         * Verifies a single read and handles its failures.
+         */
+        private final class ReadAttempt implements Action1<Cached<V, P>>,
+                Func1<Throwable, Observable<Cached<V, P>>> {
+            private final long sequence;
+
+            ReadAttempt(long sequence) {
+                this.sequence = sequence;
+            }
+
+            @Override
+            public void call(Cached<V, P> cached) {
+                if (!KeyLocks.isUnchanged(key, sequence)) {
+                    throw new KeyLocks.StaleReadException(key);
+                }
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Observable<Cached<V, P>> call(Throwable throwable) {
+                /* Errors caused by a concurrent write are retried instead of deleting the new entry */
+                if (throwable instanceof KeyLocks.StaleReadException) {
+                    return Observable.error(throwable);
+                }
+                if (!KeyLocks.isUnchanged(key, sequence)) {
+                    return Observable.error(new KeyLocks.StaleReadException(key));
+                }
+                if (throwable instanceof InvalidPolicyException) {
+                    final P policy = (P)((InvalidPolicyException)throwable).policy;
+                    if (migration != null && migration.canMigrate(policy)) {
+                        return valueReader.call(policy)
+                                .flatMap(migrateValue())
+                                .onErrorResumeNext(this);
+                    }
+                    return deleteEntry(sequence).doOnCompleted(logCacheInvalid);
+                }
+                logCacheMiss.call(throwable);
+                return isStored().flatMap(deleteAndForward(throwable));
+            }
+
+            /**
+             * Deletes the entry after a failed read. A missing Value or Policy is a plain miss, and
+             * any other storage error is forwarded once the entry is deleted.
+             */
+            private Func1<Boolean, Observable<Cached<V, P>>> deleteAndForward(
+                    final Throwable throwable) {
+                return new Func1<Boolean, Observable<Cached<V, P>>>() {
+                    @Override
+                    public Observable<Cached<V, P>> call(Boolean isStored) {
+                        final Observable<Cached<V, P>> delete = deleteEntry(sequence);
+                        return isStored
+                                ? delete.concatWith(Observable.<Cached<V, P>> error(throwable))
+                                : delete;
+                    }
+                };
+            }
+
+            /**
+             * Rewrites a migrated Value and Policy unless the key was written since it was read.
+             */
+            private Func1<Cached<V, P>, Observable<Cached<V, P>>> migrateValue() {
+                return new Func1<Cached<V, P>, Observable<Cached<V, P>>>() {
+                    @Override
+                    public Observable<Cached<V, P>> call(Cached<V, P> old) {
+                        final P policy = migration.migratePolicy(old.policy);
+                        if (!policyValidator.call(policy)) {
+                            return deleteEntry(sequence).doOnCompleted(logCacheInvalid);
+                        }
+                        final Cached<V, P> migrated = new Cached<>(
+                                migration.migrateValue(old.value, old.policy), policy, true);
+                        return KeyLocks.writeIfUnchanged(key, sequence, valueWriter.call(migrated))
+                                .doOnCompleted(logCacheMigrated)
+                                .andThen(Observable.just(migrated));
+                    }
+                };
+            }
+        }
+    }
+
+    /**
+     * Signals a stored Policy that is not validated.
+     */
+    private static final class InvalidPolicyException extends RuntimeException {
+        final Object policy;
+
+        InvalidPolicyException(Object policy) {
+            super("Policy not validated");
+            this.policy = policy;
+        }
     }
 }
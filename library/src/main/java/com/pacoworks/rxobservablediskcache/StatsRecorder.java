@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func1;
+
+/**
+ * Private class keeping the statistics of a {@link RxObservableDiskCache} incrementally, in fixed
+ * memory.
+ * <p/>
+ * Per key reads and hits are counted in count-min sketches, and the most read keys are tracked in
+ * a small table that only admits a key when its estimate beats the least read one. Reads of keys
+ * that can't enter the table don't take any lock. Distinct keys written are estimated with a
+ * HyperLogLog.
+ *
+ * @author pakoito
+ */
+class StatsRecorder<V, P> {
+    static final int MAX_HOT_KEYS = 32;
+
+    private static final long[] AGE_BUCKET_LIMITS_MILLIS = {
+            60 * 1000L, 10 * 60 * 1000L, 60 * 60 * 1000L, 6 * 60 * 60 * 1000L,
+            24 * 60 * 60 * 1000L, 7 * 24 * 60 * 60 * 1000L
+    };
+
+    private static final int UNKNOWN_SIZE = -1;
+
+    private final Func1<P, Long> policyTimestamp;
+
+    private final Func1<V, Integer> valueSize;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final AtomicLongArray ageHistogram = new AtomicLongArray(
+            AGE_BUCKET_LIMITS_MILLIS.length + 1);
+
+    private final CountMinSketch keyReads = new CountMinSketch();
+
+    private final CountMinSketch keyHits = new CountMinSketch();
+
+    private final HyperLogLog writtenKeys = new HyperLogLog();
+
+    /* Key to size of its last written Value, only added to and removed from under admission */
+    private final ConcurrentHashMap<String, Integer> hotKeys = new ConcurrentHashMap<>();
+
+    private final Object admission = new Object();
+
+    /* Reads of the least read hot key when last checked, 0 until the table is full */
+    private volatile long coldestReads;
+
+    StatsRecorder(Func1<P, Long> policyTimestamp, Func1<V, Integer> valueSize) {
+        this.policyTimestamp = policyTimestamp;
+        this.valueSize = valueSize;
+    }
+
+    Action1<Cached<V, P>> recordHit(final String key) {
+        return new Action1<Cached<V, P>>() {
+            @Override
+            public void call(Cached<V, P> cached) {
+                hits.incrementAndGet();
+                keyHits.add(key);
+                recordRead(key);
+                if (policyTimestamp != null) {
+                    final long age = System.currentTimeMillis()
+                            - policyTimestamp.call(cached.policy);
+                    ageHistogram.incrementAndGet(ageBucket(age));
+                }
+            }
+        };
+    }
+
+    Miss recordMiss(String key) {
+        return new Miss(key);
+    }
+
+    Action1<Cached<V, P>> recordWrite(final String key) {
+        return new Action1<Cached<V, P>>() {
+            @Override
+            public void call(Cached<V, P> cached) {
+                writes.incrementAndGet();
+                writtenKeys.add(key);
+                if (valueSize != null) {
+                    final int size = valueSize.call(cached.value);
+                    bytesWritten.addAndGet(size);
+                    hotKeys.replace(key, size);
+                }
+            }
+        };
+    }
+
+    CacheStats snapshot(int topN) {
+        final List<CacheStats.HotKey> hot = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : hotKeys.entrySet()) {
+            final String key = entry.getKey();
+            hot.add(new CacheStats.HotKey(key, keyReads.estimate(key), keyHits.estimate(key),
+                    entry.getValue()));
+        }
+        Collections.sort(hot, new Comparator<CacheStats.HotKey>() {
+            @Override
+            public int compare(CacheStats.HotKey first, CacheStats.HotKey second) {
+                return first.reads < second.reads ? 1 : first.reads == second.reads ? 0 : -1;
+            }
+        });
+        final long[] ages = new long[ageHistogram.length()];
+        for (int i = 0; i < ages.length; i++) {
+            ages[i] = ageHistogram.get(i);
+        }
+        return new CacheStats(hits.get(), misses.get(), writes.get(), bytesWritten.get(),
+                writtenKeys.estimate(), ages,
+                Collections.unmodifiableList(hot.subList(0, Math.min(topN, hot.size()))));
+    }
+
+    private void recordRead(String key) {
+        final long reads = keyReads.add(key);
+        /*
+         * Hot keys only gain reads, so the coldest estimate can only be under the real one, and a
+         * key rejected here would also be rejected under the lock
+         */
+        if (reads <= coldestReads || hotKeys.containsKey(key)) {
+            return;
+        }
+        synchronized (admission) {
+            if (hotKeys.containsKey(key)) {
+                return;
+            }
+            if (hotKeys.size() < MAX_HOT_KEYS) {
+                hotKeys.put(key, UNKNOWN_SIZE);
+            } else {
+                final String coldest = findColdest();
+                if (reads > keyReads.estimate(coldest)) {
+                    hotKeys.remove(coldest);
+                    hotKeys.put(key, UNKNOWN_SIZE);
+                }
+            }
+            if (hotKeys.size() == MAX_HOT_KEYS) {
+                coldestReads = keyReads.estimate(findColdest());
+            }
+        }
+    }
+
+    /* Called under admission with a non empty table */
+    private String findColdest() {
+        String coldest = null;
+        long leastReads = Long.MAX_VALUE;
+        for (String candidate : hotKeys.keySet()) {
+            final long candidateReads = keyReads.estimate(candidate);
+            if (candidateReads < leastReads) {
+                coldest = candidate;
+                leastReads = candidateReads;
+            }
+        }
+        return coldest;
+    }
+
+    private static int ageBucket(long ageMillis) {
+        for (int i = 0; i < AGE_BUCKET_LIMITS_MILLIS.length; i++) {
+            if (ageMillis < AGE_BUCKET_LIMITS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return AGE_BUCKET_LIMITS_MILLIS.length;
+    }
+
+    private static int spread(int hash) {
+        final int mixed = hash * 0x9E3779B9;
+        return mixed ^ (mixed >>> 16);
+    }
+
+    /**
+     * Records a read that found no valid cached Value, either by completing empty or failing.
+     */
+    final class Miss implements Action0, Action1<Throwable> {
+        private final String key;
+
+        Miss(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void call() {
+            misses.incrementAndGet();
+            recordRead(key);
+        }
+
+        @Override
+        public void call(Throwable throwable) {
+            call();
+        }
+    }
+
+    private static final class CountMinSketch {
+        private static final int DEPTH = 4;
+
+        private static final int WIDTH = 1024;
+
+        private final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH * WIDTH);
+
+        /**
+         * @return the estimate after adding
+         */
+        long add(String key) {
+            final int hash = spread(key.hashCode());
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.incrementAndGet(index(hash, row)));
+            }
+            return estimate;
+        }
+
+        long estimate(String key) {
+            final int hash = spread(key.hashCode());
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.get(index(hash, row)));
+            }
+            return estimate;
+        }
+
+        private static int index(int hash, int row) {
+            /* Derives one hash per row from two halves of the same hash */
+            final int rowHash = (hash & 0xFFFF) + row * (hash >>> 16 | 1);
+            return row * WIDTH + (spread(rowHash) & (WIDTH - 1));
+        }
+    }
+
+    private static final class HyperLogLog {
+        private static final int INDEX_BITS = 8;
+
+        private static final int REGISTERS = 1 << INDEX_BITS;
+
+        private final AtomicIntegerArray registers = new AtomicIntegerArray(REGISTERS);
+
+        void add(String key) {
+            final int hash = spread(key.hashCode());
+            final int register = hash >>> (32 - INDEX_BITS);
+            final int rank = Integer.numberOfLeadingZeros((hash << INDEX_BITS) | (1 << (INDEX_BITS - 1))) + 1;
+            int current;
+            while ((current = registers.get(register)) < rank) {
+                if (registers.compareAndSet(register, current, rank)) {
+                    return;
+                }
+            }
+        }
+
+        long estimate() {
+            double sum = 0;
+            int zeros = 0;
+            for (int i = 0; i < REGISTERS; i++) {
+                final int value = registers.get(i);
+                sum += 1.0 / (1 << value);
+                if (value == 0) {
+                    zeros++;
+                }
+            }
+            final double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+            final double estimate = alpha * REGISTERS * REGISTERS / sum;
+            /* Linear counting is more accurate for small cardinalities */
+            if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+                return Math.round(REGISTERS * Math.log((double)REGISTERS / zeros));
+            }
+            return Math.round(estimate);
+        }
+    }
+}
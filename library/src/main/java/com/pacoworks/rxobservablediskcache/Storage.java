@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.util.List;
+
+import rx.Completable;
+import rx.Single;
+
+/**
+ * Private interface with the storage operations used by {@link RxObservableDiskCache}, backed by a
+ * {@link com.pacoworks.rxpaper.RxPaperBook} through {@link PaperStorage}.
+ * <p/>
+ * It allows running the cache on the JVM with a local stand-in.
+ *
+ * @author pakoito
+ */
+interface Storage {
+    <T> Single<T> read(String key);
+
+    Completable write(String key, Object value);
+
+    Completable delete(String key);
+
+    Single<Boolean> exists(String key);
+
+    Single<List<String>> keys();
+}
@@ -16,6 +16,7 @@
 
 package com.pacoworks.rxobservablediskcache.policy;
 
+import com.pacoworks.rxobservablediskcache.RefreshAhead;
 import com.pacoworks.rxobservablediskcache.RxObservableDiskCache;
 
 import rx.functions.Func1;
@@ -89,4 +90,33 @@ public class TimeAndVersionPolicy {
             }
         };
     }
+
+    /**
+     * Expiration function to pass to {@link RefreshAhead}
+     *
+     * @param maxCacheDurationMillis maximum caching time allowed
+     * @return expiration function
+     */
+    public static Func1<TimeAndVersionPolicy, Long> expiration(final long maxCacheDurationMillis) {
+        return new Func1<TimeAndVersionPolicy, Long>() {
+            @Override
+            public Long call(TimeAndVersionPolicy myPolicy) {
+                return myPolicy.timestamp + maxCacheDurationMillis;
+            }
+        };
+    }
+
+    /**
+     * Timestamp function to pass to {@link RxObservableDiskCache#withStats(Func1, Func1)}
+     *
+     * @return timestamp function
+     */
+    public static Func1<TimeAndVersionPolicy, Long> storedAt() {
+        return new Func1<TimeAndVersionPolicy, Long>() {
+            @Override
+            public Long call(TimeAndVersionPolicy myPolicy) {
+                return myPolicy.timestamp;
+            }
+        };
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.pacoworks.rxobservablediskcache.policy;
 
+import com.pacoworks.rxobservablediskcache.RefreshAhead;
 import com.pacoworks.rxobservablediskcache.RxObservableDiskCache;
 
 import rx.functions.Func1;
@@ -83,4 +84,33 @@ public class TimePolicy {
             }
         };
     }
+
+    /**
+     * Expiration function to pass to {@link RefreshAhead}
+     *
+     * @param maxCacheDurationMillis maximum caching time allowed
+     * @return expiration function
+     */
+    public static Func1<TimePolicy, Long> expiration(final long maxCacheDurationMillis) {
+        return new Func1<TimePolicy, Long>() {
+            @Override
+            public Long call(TimePolicy myPolicy) {
+                return myPolicy.timestamp + maxCacheDurationMillis;
+            }
+        };
+    }
+
+    /**
+     * Timestamp function to pass to {@link RxObservableDiskCache#withStats(Func1, Func1)}
+     *
+     * @return timestamp function
+     */
+    public static Func1<TimePolicy, Long> storedAt() {
+        return new Func1<TimePolicy, Long>() {
+            @Override
+            public Long call(TimePolicy myPolicy) {
+                return myPolicy.timestamp;
+            }
+        };
+    }
 }
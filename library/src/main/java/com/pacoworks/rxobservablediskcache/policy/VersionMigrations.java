@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache.policy;
+
+import com.pacoworks.rxobservablediskcache.Migration;
+import com.pacoworks.rxobservablediskcache.RxObservableDiskCache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import rx.functions.Func1;
+
+/**
+ * Registry of migration functions between versions, to pass to
+ * {@link RxObservableDiskCache#withMigration(Migration)} for {@link VersionPolicy} and
+ * {@link TimeAndVersionPolicy}.
+ * <p/>
+ * Each registered function converts a Value from one version to the next one, and they're chained
+ * until the current version is reached. Values with versions that can't reach it are deleted.
+ *
+ * @param <V> type of the data to store
+ * @author pakoito
+ */
+public class VersionMigrations<V> {
+    private final int currentVersion;
+
+    private final Map<Integer, Step<V>> steps = new HashMap<>();
+
+    VersionMigrations(int currentVersion) {
+        this.currentVersion = currentVersion;
+    }
+
+    /**
+     * Creates an empty registry of migrations.
+     *
+     * @param currentVersion version Values are migrated to
+     * @return migrations registry
+     */
+    public static <V> VersionMigrations<V> to(int currentVersion) {
+        return new VersionMigrations<>(currentVersion);
+    }
+
+    /**
+     * Registers the function converting a Value from a version to a later one.
+     *
+     * @param fromVersion version of the stored Value
+     * @param toVersion version of the converted Value
+     * @param migration conversion function
+     * @return this registry
+     */
+    public synchronized VersionMigrations<V> register(int fromVersion, int toVersion,
+            Func1<V, V> migration) {
+        if (toVersion <= fromVersion) {
+            throw new IllegalArgumentException("Migrations must go to a later version, from "
+                    + fromVersion + " to " + toVersion);
+        }
+        steps.put(fromVersion, new Step<>(toVersion, migration));
+        return this;
+    }
+
+    /**
+     * @return {@link Migration} for Values stored with a {@link VersionPolicy}
+     */
+    public Migration<V, VersionPolicy> forVersionPolicy() {
+        return new Migration<V, VersionPolicy>() {
+            @Override
+            public boolean canMigrate(VersionPolicy policy) {
+                return VersionMigrations.this.canMigrate(policy.version);
+            }
+
+            @Override
+            public V migrateValue(V value, VersionPolicy policy) {
+                return migrate(value, policy.version);
+            }
+
+            @Override
+            public VersionPolicy migratePolicy(VersionPolicy policy) {
+                return new VersionPolicy(currentVersion);
+            }
+        };
+    }
+
+    /**
+     * The migrated Policy keeps its original timestamp, so migrating doesn't extend the caching
+     * time.
+     *
+     * @return {@link Migration} for Values stored with a {@link TimeAndVersionPolicy}
+     */
+    public Migration<V, TimeAndVersionPolicy> forTimeAndVersionPolicy() {
+        return new Migration<V, TimeAndVersionPolicy>() {
+            @Override
+            public boolean canMigrate(TimeAndVersionPolicy policy) {
+                return VersionMigrations.this.canMigrate(policy.version);
+            }
+
+            @Override
+            public V migrateValue(V value, TimeAndVersionPolicy policy) {
+                return migrate(value, policy.version);
+            }
+
+            @Override
+            public TimeAndVersionPolicy migratePolicy(TimeAndVersionPolicy policy) {
+                return new TimeAndVersionPolicy(policy.timestamp, currentVersion);
+            }
+        };
+    }
+
+    synchronized boolean canMigrate(int version) {
+        int current = version;
+        while (current < currentVersion) {
+            final Step<V> step = steps.get(current);
+            if (step == null) {
+                return false;
+            }
+            current = step.toVersion;
+        }
+        return current == currentVersion && version != currentVersion;
+    }
+
+    synchronized V migrate(V value, int version) {
+        V migrated = value;
+        int current = version;
+        while (current < currentVersion) {
+            final Step<V> step = steps.get(current);
+            migrated = step.migration.call(migrated);
+            current = step.toVersion;
+        }
+        return migrated;
+    }
+
+    private static final class Step<V> {
+        final int toVersion;
+
+        final Func1<V, V> migration;
+
+        Step(int toVersion, Func1<V, V> migration) {
+            this.toVersion = toVersion;
+            this.migration = migration;
+        }
+    }
+}
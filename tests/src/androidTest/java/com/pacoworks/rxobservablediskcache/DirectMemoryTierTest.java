@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.nio.charset.Charset;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.ComponentCallbacks2;
+import android.support.test.runner.AndroidJUnit4;
+
+import rx.functions.Func1;
+
+@RunWith(AndroidJUnit4.class)
+public class DirectMemoryTierTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BLOCK_SIZE = 16;
+
+    private static final int SLAB_BLOCKS = 2;
+
+    private DirectMemoryTier<String, MyPolicy> tier;
+
+    @Before
+    public void setUp() {
+        tier = new DirectMemoryTier<>(4 * BLOCK_SIZE, BLOCK_SIZE, SLAB_BLOCKS,
+                new Func1<String, byte[]>() {
+                    @Override
+                    public byte[] call(String value) {
+                        return value.getBytes(UTF_8);
+                    }
+                }, new Func1<byte[], String>() {
+                    @Override
+                    public String call(byte[] bytes) {
+                        return new String(bytes, UTF_8);
+                    }
+                });
+    }
+
+    @Test
+    public void emptyTier_put_getSameValueAndPolicy() {
+        final MyPolicy policy = new MyPolicy();
+        /* Act */
+        tier.put("key", new Cached<>("a value spanning two blocks", policy, false));
+        final Cached<String, MyPolicy> cached = tier.get("key");
+        /* Assert */
+        Assert.assertEquals("a value spanning two blocks", cached.value);
+        Assert.assertSame(policy, cached.policy);
+        Assert.assertTrue(cached.isFromDisk);
+        Assert.assertEquals(2 * BLOCK_SIZE, tier.size());
+    }
+
+    @Test
+    public void emptyTier_putSmallValue_allocateOneSlab() {
+        Assert.assertEquals(0, tier.allocatedSize());
+        /* Act */
+        tier.put("key", new Cached<>("small", new MyPolicy(), false));
+        /* Assert */
+        Assert.assertEquals(SLAB_BLOCKS * BLOCK_SIZE, tier.allocatedSize());
+        Assert.assertEquals(BLOCK_SIZE, tier.size());
+    }
+
+    @Test
+    public void partialTier_putOverSlab_growBeforeEvicting() {
+        tier.put("first", new Cached<>("small", new MyPolicy(), false));
+        /* Act */
+        tier.put("second", new Cached<>("a value spanning two blocks", new MyPolicy(), false));
+        /* Assert */
+        Assert.assertEquals(4 * BLOCK_SIZE, tier.allocatedSize());
+        Assert.assertNotNull(tier.get("first"));
+        Assert.assertNotNull(tier.get("second"));
+    }
+
+    @Test
+    public void fullTier_put_evictLeastRecentlyUsed() {
+        tier.put("first", new Cached<>("0123456789abcdef", new MyPolicy(), false));
+        tier.put("second", new Cached<>("0123456789abcdef", new MyPolicy(), false));
+        tier.put("third", new Cached<>("0123456789abcdef", new MyPolicy(), false));
+        tier.get("first");
+        /* Act */
+        tier.put("fourth", new Cached<>("0123456789abcdef0123456789abcdef", new MyPolicy(), false));
+        /* Assert */
+        Assert.assertNotNull(tier.get("first"));
+        Assert.assertNull(tier.get("second"));
+        Assert.assertNotNull(tier.get("third"));
+        Assert.assertNotNull(tier.get("fourth"));
+    }
+
+    @Test
+    public void valueOverBudget_put_notStored() {
+        /* Act */
+        tier.put("key", new Cached<>(new String(new char[5 * BLOCK_SIZE]), new MyPolicy(), false));
+        /* Assert */
+        Assert.assertNull(tier.get("key"));
+        Assert.assertEquals(0, tier.size());
+    }
+
+    @Test
+    public void trimmedTier_put_reuseReleasedMemory() {
+        tier.put("first", new Cached<>("0123456789abcdef", new MyPolicy(), false));
+        tier.put("second", new Cached<>("0123456789abcdef", new MyPolicy(), false));
+        tier.put("third", new Cached<>("0123456789abcdef", new MyPolicy(), false));
+        tier.trimToSize(BLOCK_SIZE);
+        /* Act */
+        tier.put("fourth", new Cached<>("0123456789abcdef0123456789abcdef", new MyPolicy(), false));
+        /* Assert */
+        Assert.assertEquals(3 * BLOCK_SIZE, tier.size());
+        Assert.assertEquals(4 * BLOCK_SIZE, tier.allocatedSize());
+        Assert.assertEquals("0123456789abcdef", tier.get("third").value);
+        Assert.assertEquals("0123456789abcdef0123456789abcdef", tier.get("fourth").value);
+    }
+
+    @Test
+    public void filledTier_trimMemory_releaseEntries() {
+        tier.put("first", new Cached<>("0123456789abcdef", new MyPolicy(), false));
+        tier.put("second", new Cached<>("0123456789abcdef", new MyPolicy(), false));
+        tier.put("third", new Cached<>("0123456789abcdef", new MyPolicy(), false));
+        Assert.assertEquals(4 * BLOCK_SIZE, tier.allocatedSize());
+        /* Act */
+        tier.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        /* Assert */
+        Assert.assertEquals(2 * BLOCK_SIZE, tier.size());
+        Assert.assertEquals(SLAB_BLOCKS * BLOCK_SIZE, tier.allocatedSize());
+        Assert.assertNull(tier.get("first"));
+        Assert.assertEquals("0123456789abcdef", tier.get("second").value);
+        Assert.assertEquals("0123456789abcdef", tier.get("third").value);
+        /* Act */
+        tier.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        /* Assert */
+        Assert.assertEquals(0, tier.size());
+        Assert.assertEquals(0, tier.allocatedSize());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.pacoworks.rxpaper.RxPaperBook;
+
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import rx.Completable;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.observers.TestSubscriber;
+
+@RunWith(AndroidJUnit4.class)
+public class KeyLocksTest {
+    @Rule
+    public final ActivityTestRule<MainActivity> activity = new ActivityTestRule<>(
+            MainActivity.class);
+
+    private RxPaperBook testBook;
+
+    @Before
+    public void setUp() {
+        RxPaperBook.init(activity.getActivity());
+        testBook = RxPaperBook.with("test_book");
+        testBook.destroy().await();
+    }
+
+    @Test
+    public void keyWritten_writeIfUnchanged_failWithoutRunning() {
+        final String key = "written_key";
+        final long staleSequence = KeyLocks.sequence(key);
+        KeyLocks.write(key, Completable.complete()).await();
+        final AtomicInteger runs = new AtomicInteger();
+        final TestSubscriber<Object> subscriber = TestSubscriber.create();
+        /* Act */
+        KeyLocks.writeIfUnchanged(key, staleSequence, countRuns(runs)).toObservable()
+                .subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertError(KeyLocks.StaleReadException.class);
+        Assert.assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void otherKeyWritten_writeIfUnchanged_run() {
+        final String key = "unchanged_key";
+        final long sequence = KeyLocks.sequence(key);
+        KeyLocks.write("other_key", Completable.complete()).await();
+        final AtomicInteger runs = new AtomicInteger();
+        /* Act */
+        KeyLocks.writeIfUnchanged(key, sequence, countRuns(runs)).await();
+        /* Assert */
+        Assert.assertEquals(1, runs.get());
+        Assert.assertFalse(KeyLocks.isUnchanged(key, sequence));
+    }
+
+    @Test
+    public void freshPairWritten_staleDelete_keepFreshPair() {
+        final String key = "fresh_key";
+        final long staleSequence = KeyLocks.sequence(key);
+        KeyLocks.write(key, Completable.mergeDelayError(testBook.write(key, "fresh"),
+                testBook.write(RxObservableDiskCache.composePolicyKey(key), new MyPolicy())))
+                .await();
+        /* Act */
+        KeyLocks.writeIfUnchanged(key, staleSequence, Completable.mergeDelayError(
+                testBook.delete(key), testBook.delete(RxObservableDiskCache.composePolicyKey(key))))
+                .onErrorComplete().await();
+        /* Assert */
+        Assert.assertEquals("fresh", testBook.<String> read(key).toBlocking().value());
+        Assert.assertTrue(testBook.exists(RxObservableDiskCache.composePolicyKey(key)).toBlocking()
+                .value());
+    }
+
+    @Test
+    public void readOverlapsWriteOnce_retryStaleReads_getValue() {
+        final AtomicInteger attempts = new AtomicInteger();
+        final TestSubscriber<String> subscriber = TestSubscriber.create();
+        /* Act */
+        KeyLocks.retryStaleReads("retried_key", staleReads(attempts, 1)).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertNoErrors();
+        subscriber.assertValue("value");
+        Assert.assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void readAlwaysOverlapsWrite_retryStaleReads_giveUpEmpty() {
+        final AtomicInteger attempts = new AtomicInteger();
+        final TestSubscriber<String> subscriber = TestSubscriber.create();
+        /* Act */
+        KeyLocks.retryStaleReads("contended_key", staleReads(attempts, Integer.MAX_VALUE))
+                .subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertNoErrors();
+        subscriber.assertNoValues();
+        subscriber.assertCompleted();
+        Assert.assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void readFails_retryStaleReads_getError() {
+        final TestSubscriber<String> subscriber = TestSubscriber.create();
+        /* Act */
+        KeyLocks.retryStaleReads("failed_key",
+                Observable.<String> error(new IllegalStateException())).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertError(IllegalStateException.class);
+    }
+
+    @Test
+    public void writeInProgress_retryStaleReads_readOnceWriteFinishes()
+            throws InterruptedException {
+        final String key = "in_progress_key";
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        KeyLocks.write(key, Completable.fromAction(new Action0() {
+            @Override
+            public void call() {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        })).subscribe();
+        Assert.assertTrue(writing.await(5, TimeUnit.SECONDS));
+        final AtomicInteger attempts = new AtomicInteger();
+        final TestSubscriber<String> subscriber = TestSubscriber.create();
+        /* Act */
+        KeyLocks.retryStaleReads(key, readWhenNotWriting(key, attempts)).subscribe(subscriber);
+        /* Assert */
+        Assert.assertFalse(subscriber.awaitValueCount(1, 100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        subscriber.awaitTerminalEvent();
+        subscriber.assertNoErrors();
+        subscriber.assertValue("value");
+        Assert.assertEquals(2, attempts.get());
+    }
+
+    private static Completable countRuns(final AtomicInteger runs) {
+        return Completable.fromAction(new Action0() {
+            @Override
+            public void call() {
+                runs.incrementAndGet();
+            }
+        });
+    }
+
+    /* Fails without reading while a write is in progress, like the reads of the cache */
+    private static Observable<String> readWhenNotWriting(final String key,
+            final AtomicInteger attempts) {
+        return Observable.defer(new Func0<Observable<String>>() {
+            @Override
+            public Observable<String> call() {
+                attempts.incrementAndGet();
+                if (KeyLocks.isWriting(KeyLocks.sequence(key))) {
+                    return Observable.error(new KeyLocks.StaleReadException(key));
+                }
+                return Observable.just("value");
+            }
+        });
+    }
+
+    private static Observable<String> staleReads(final AtomicInteger attempts,
+            final int staleAttempts) {
+        return Observable.create(new Observable.OnSubscribe<String>() {
+            @Override
+            public void call(Subscriber<? super String> subscriber) {
+                if (attempts.incrementAndGet() <= staleAttempts) {
+                    subscriber.onError(new KeyLocks.StaleReadException("key"));
+                } else {
+                    subscriber.onNext("value");
+                    subscriber.onCompleted();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.pacoworks.rxobservablediskcache.policy.TimePolicy;
+import com.pacoworks.rxpaper.RxPaperBook;
+
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import rx.Single;
+import rx.Subscription;
+import rx.functions.Func0;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+@RunWith(AndroidJUnit4.class)
+public class RefreshAheadTest {
+    private static final String KEY = "test_key";
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    private static final long PERIOD_MILLIS = 60 * 1000;
+
+    @Rule
+    public final ActivityTestRule<MainActivity> activity = new ActivityTestRule<>(
+            MainActivity.class);
+
+    private RxPaperBook testBook;
+
+    private RxObservableDiskCache<String, TimePolicy> cache;
+
+    @Before
+    public void setUp() {
+        RxPaperBook.init(activity.getActivity());
+        testBook = RxPaperBook.with("test_book");
+        testBook.destroy().await();
+        cache = RxObservableDiskCache.create(testBook, TimePolicy.<String> create(),
+                TimePolicy.validate(HOUR_MILLIS));
+    }
+
+    @Test
+    public void hotKeyCloseToExpiration_check_refreshKey() {
+        final RefreshAhead<String, TimePolicy> refreshAhead = createRefreshAhead(2);
+        /* Act */
+        refreshAhead.transform(Single.just("hello"), KEY).toBlocking().last();
+        refreshAhead.transform(Single.just("hello"), KEY).toBlocking().last();
+        /* Assert */
+        Assert.assertEquals(Collections.singletonList(KEY),
+                refreshAhead.findKeysToRefresh(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void coldKeyCloseToExpiration_check_skipKey() {
+        final RefreshAhead<String, TimePolicy> refreshAhead = createRefreshAhead(3);
+        /* Act */
+        refreshAhead.transform(Single.just("hello"), KEY).toBlocking().last();
+        refreshAhead.transform(Single.just("hello"), KEY).toBlocking().last();
+        /* Assert */
+        Assert.assertTrue(refreshAhead.findKeysToRefresh(System.currentTimeMillis()).isEmpty());
+    }
+
+    @Test
+    public void keyReadOnce_secondCheck_skipKey() {
+        final RefreshAhead<String, TimePolicy> refreshAhead = createRefreshAhead(1);
+        refreshAhead.transform(Single.just("hello"), KEY).toBlocking().last();
+        Assert.assertEquals(Collections.singletonList(KEY),
+                refreshAhead.findKeysToRefresh(System.currentTimeMillis()));
+        /* Act */
+        final List<String> keys = refreshAhead.findKeysToRefresh(System.currentTimeMillis());
+        /* Assert */
+        Assert.assertTrue(keys.isEmpty());
+    }
+
+    @Test
+    public void hotKeyCloseToExpiration_start_writeRefreshedValue() {
+        final TestScheduler scheduler = new TestScheduler();
+        final RefreshAhead<String, TimePolicy> refreshAhead = createRefreshAhead(1, scheduler,
+                new Func0<Single<String>>() {
+                    @Override
+                    public Single<String> call() {
+                        return Single.just("refreshed");
+                    }
+                });
+        refreshAhead.transform(Single.just("hello"), KEY).toBlocking().last();
+        final TestSubscriber<Cached<String, TimePolicy>> subscriber = TestSubscriber.create();
+        cache.observe(KEY).subscribe(subscriber);
+        Assert.assertTrue(subscriber.awaitValueCount(1, 5, TimeUnit.SECONDS));
+        final Subscription checks = refreshAhead.start(PERIOD_MILLIS);
+        /* Act */
+        scheduler.advanceTimeBy(PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        /* Assert */
+        Assert.assertTrue(subscriber.awaitValueCount(2, 5, TimeUnit.SECONDS));
+        Assert.assertEquals("refreshed", subscriber.getOnNextEvents().get(1).value);
+        Assert.assertEquals("refreshed", testBook.<String> read(KEY).toBlocking().value());
+        refreshAhead.stop();
+        Assert.assertTrue(checks.isUnsubscribed());
+        subscriber.unsubscribe();
+    }
+
+    @Test
+    public void refreshInProgress_check_skipKey() {
+        final TestScheduler scheduler = new TestScheduler();
+        final AtomicInteger upstreamCalls = new AtomicInteger();
+        final RefreshAhead<String, TimePolicy> refreshAhead = createRefreshAhead(1, scheduler,
+                new Func0<Single<String>>() {
+                    @Override
+                    public Single<String> call() {
+                        upstreamCalls.incrementAndGet();
+                        return Single.never();
+                    }
+                });
+        refreshAhead.transform(Single.just("hello"), KEY).toBlocking().last();
+        refreshAhead.transform(Single.just("hello"), KEY).toBlocking().last();
+        refreshAhead.start(PERIOD_MILLIS);
+        /* Act */
+        scheduler.advanceTimeBy(PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        /* Assert */
+        Assert.assertEquals(1, upstreamCalls.get());
+        Assert.assertTrue(refreshAhead.findKeysToRefresh(System.currentTimeMillis()).isEmpty());
+        refreshAhead.stop();
+    }
+
+    private RefreshAhead<String, TimePolicy> createRefreshAhead(int minReads) {
+        /* The refresh window is longer than the caching time, so any read key is close to expiring */
+        final RefreshAhead<String, TimePolicy> refreshAhead = RefreshAhead.create(cache,
+                TimePolicy.expiration(HOUR_MILLIS), 2 * HOUR_MILLIS, minReads,
+                Schedulers.immediate());
+        refreshAhead.register(KEY, new Func0<Single<String>>() {
+            @Override
+            public Single<String> call() {
+                return Single.just("refreshed");
+            }
+        });
+        return refreshAhead;
+    }
+
+    private RefreshAhead<String, TimePolicy> createRefreshAhead(int minReads,
+            TestScheduler scheduler, Func0<Single<String>> upstream) {
+        final RefreshAhead<String, TimePolicy> refreshAhead = RefreshAhead.create(cache,
+                TimePolicy.expiration(HOUR_MILLIS), 2 * HOUR_MILLIS, minReads, scheduler);
+        refreshAhead.register(KEY, upstream);
+        return refreshAhead;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.pacoworks.rxpaper.RxPaperBook;
+
+import android.os.Debug;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import rx.Observable;
+import rx.Single;
+import rx.functions.Action0;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+
+/**
+ * Counts the allocations of a cache hit on the subscribing thread, with RxPaper running on the
+ * same thread so the disk reads are counted too. The cost of reading the Value and Policy directly
+ * from the book is measured first, so the budget only covers the operators of the cache.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RxObservableDiskCacheAllocationTest {
+    private static final String KEY = "test_key";
+
+    private static final int WARMUP_ITERATIONS = 20;
+
+    private static final int MEASURED_ITERATIONS = 200;
+
+    /* Allocations of a hit on top of reading its Value and Policy from the book */
+    private static final int MAX_OVERHEAD_PER_HIT = 128;
+
+    @Rule
+    public final ActivityTestRule<MainActivity> activity = new ActivityTestRule<>(
+            MainActivity.class);
+
+    private RxPaperBook testBook;
+
+    private Func1<List<Serializable>, MyPolicy> policyCreator;
+
+    private Func1<MyPolicy, Boolean> policyValidator;
+
+    private RxObservableDiskCache<List<Serializable>, MyPolicy> cache;
+
+    @Before
+    public void setUp() {
+        RxPaperBook.init(activity.getActivity());
+        testBook = RxPaperBook.with("test_book", Schedulers.immediate());
+        testBook.destroy().await();
+        policyCreator = new Func1<List<Serializable>, MyPolicy>() {
+            @Override
+            public MyPolicy call(List<Serializable> serializables) {
+                return new MyPolicy();
+            }
+        };
+        policyValidator = new Func1<MyPolicy, Boolean>() {
+            @Override
+            public Boolean call(MyPolicy myPolicy) {
+                return true;
+            }
+        };
+        cache = RxObservableDiskCache.create(testBook, policyCreator, policyValidator);
+        cache.transform(Single.just(Arrays.<Serializable> asList(true, 1, "hello")), KEY)
+                .toBlocking().last();
+        Debug.startAllocCounting();
+    }
+
+    @After
+    public void tearDown() {
+        Debug.stopAllocCounting();
+    }
+
+    @Test
+    public void validCache_cacheHit_allocationsWithinBudget() {
+        final int readAllocations = measure(new Action0() {
+            @Override
+            public void call() {
+                readFromBook();
+            }
+        });
+        /* Act */
+        final int hitAllocations = measure(new Action0() {
+            @Override
+            public void call() {
+                hit(cache.transform(Single.<List<Serializable>> never(), KEY));
+            }
+        });
+        /* Assert */
+        final int overhead = hitAllocations - readAllocations;
+        Assert.assertTrue("Allocations per cache hit: " + hitAllocations + ", reading the book: "
+                + readAllocations, overhead <= MAX_OVERHEAD_PER_HIT);
+    }
+
+    @Test
+    public void validCache_cacheHit_allocateLessThanStaticTransform() {
+        final int staticAllocations = measure(new Action0() {
+            @Override
+            public void call() {
+                hit(RxObservableDiskCache.transform(Single.<List<Serializable>> never(), KEY,
+                        testBook, policyCreator, policyValidator));
+            }
+        });
+        /* Act */
+        final int hitAllocations = measure(new Action0() {
+            @Override
+            public void call() {
+                hit(cache.transform(Single.<List<Serializable>> never(), KEY));
+            }
+        });
+        /* Assert */
+        Assert.assertTrue("Allocations per cache hit: " + hitAllocations + ", static transform: "
+                + staticAllocations, hitAllocations < staticAllocations);
+    }
+
+    private static int measure(Action0 operation) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.call();
+        }
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            operation.call();
+        }
+        return Debug.getThreadAllocCount() / MEASURED_ITERATIONS;
+    }
+
+    private void readFromBook() {
+        final String policyKey = RxObservableDiskCache.composePolicyKey(KEY);
+        final TestSubscriber<Object> subscriber = TestSubscriber.create();
+        Observable.concat(testBook.<MyPolicy> read(policyKey).toObservable(),
+                testBook.<List<Serializable>> read(KEY).toObservable()).subscribe(subscriber);
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(2);
+    }
+
+    /* Only the cached Value is taken, so the upstream Single is never subscribed */
+    private static void hit(Observable<Cached<List<Serializable>, MyPolicy>> transformed) {
+        final TestSubscriber<Cached<List<Serializable>, MyPolicy>> subscriber = TestSubscriber
+                .create();
+        transformed.take(1).subscribe(subscriber);
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(1);
+    }
+}
@@ -16,9 +16,16 @@
 
 package com.pacoworks.rxobservablediskcache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -26,11 +33,15 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.pacoworks.rxobservablediskcache.policy.TimePolicy;
+import com.pacoworks.rxobservablediskcache.policy.VersionMigrations;
+import com.pacoworks.rxobservablediskcache.policy.VersionPolicy;
 import com.pacoworks.rxpaper.RxPaperBook;
 
 import android.support.test.rule.ActivityTestRule;
 import android.support.test.runner.AndroidJUnit4;
 
+import rx.Observable;
 import rx.Single;
 import rx.functions.Func1;
 import rx.observers.TestSubscriber;
@@ -39,6 +50,8 @@ import rx.observers.TestSubscriber;
 public class RxObservableDiskCacheTest {
     private static final String KEY = "test_key";
 
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
     @Rule
     public final ActivityTestRule<MainActivity> activity = new ActivityTestRule<>(
             MainActivity.class);
@@ -200,4 +213,362 @@ public class RxObservableDiskCacheTest {
         subscriber.assertError(IllegalStateException.class);
         Assert.assertFalse(testBook.exists(KEY).toBlocking().value());
     }
+
+    @Test
+    public void deduplicatedCache_sameValueTwoKeys_storeValueOnce() {
+        final RxObservableDiskCache<List<Serializable>, MyPolicy> cache = createDeduplicatedCache();
+        final List<Serializable> list = Arrays.<Serializable> asList(true, 1, "hello");
+        /* Act */
+        cache.transform(Single.just(list), KEY).toBlocking().last();
+        cache.transform(Single.just(list), "other_key").toBlocking().last();
+        final TestSubscriber<Cached<List<Serializable>, MyPolicy>> subscriber = TestSubscriber
+                .create();
+        cache.transform(Single.just(list), "other_key").subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(2);
+        Assert.assertEquals(list, subscriber.getOnNextEvents().get(0).value);
+        /* Two references, two policies, two reference marks, and one value */
+        Assert.assertEquals(7, testBook.keys().toBlocking().value().size());
+    }
+
+    @Test
+    public void deduplicatedCache_valueUnreferenced_collectGarbageDeletesValue() {
+        final RxObservableDiskCache<List<Serializable>, MyPolicy> cache = createDeduplicatedCache();
+        cache.transform(Single.just(Arrays.<Serializable> asList(true, 1, "hello")), KEY)
+                .toBlocking().last();
+        cache.transform(Single.just(Arrays.<Serializable> asList(false, 2, "bye")), KEY)
+                .toBlocking().last();
+        /* Act */
+        cache.collectGarbage().await();
+        /* Assert */
+        Assert.assertEquals(4, testBook.keys().toBlocking().value().size());
+    }
+
+    @Test
+    public void deduplicatedCache_valuesWithSameText_storeBothValues() {
+        final RxObservableDiskCache<List<Serializable>, MyPolicy> cache = createDeduplicatedCache();
+        final List<Serializable> numberList = Arrays.<Serializable> asList(true, 1, "hello");
+        final List<Serializable> textList = Arrays.<Serializable> asList(true, "1", "hello");
+        cache.transform(Single.just(numberList), KEY).toBlocking().last();
+        cache.transform(Single.just(textList), "other_key").toBlocking().last();
+        final TestSubscriber<Cached<List<Serializable>, MyPolicy>> subscriber = TestSubscriber
+                .create();
+        /* Act */
+        cache.transform(Single.<List<Serializable>> never(), "other_key").take(1)
+                .subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertNoErrors();
+        Assert.assertEquals(textList, subscriber.getOnNextEvents().get(0).value);
+        /* Two references, two policies, two reference marks, and two values */
+        Assert.assertEquals(8, testBook.keys().toBlocking().value().size());
+    }
+
+    private RxObservableDiskCache<List<Serializable>, MyPolicy> createDeduplicatedCache() {
+        return RxObservableDiskCache.create(testBook,
+                new Func1<List<Serializable>, MyPolicy>() {
+                    @Override
+                    public MyPolicy call(List<Serializable> serializables) {
+                        return new MyPolicy();
+                    }
+                }, new Func1<MyPolicy, Boolean>() {
+                    @Override
+                    public Boolean call(MyPolicy myPolicy) {
+                        return true;
+                    }
+                }).withDeduplication(new Func1<List<Serializable>, byte[]>() {
+                    @Override
+                    public byte[] call(List<Serializable> serializables) {
+                        return serialize(serializables);
+                    }
+                });
+    }
+
+    @Test
+    public void memoryTierCache_secondTransform_getCacheFromTier() {
+        final DirectMemoryTier<List<Serializable>, MyPolicy> tier = DirectMemoryTier.create(
+                64 * 1024, new Func1<List<Serializable>, byte[]>() {
+                    @Override
+                    public byte[] call(List<Serializable> serializables) {
+                        return serialize(serializables);
+                    }
+                }, new Func1<byte[], List<Serializable>>() {
+                    @Override
+                    public List<Serializable> call(byte[] bytes) {
+                        return deserialize(bytes);
+                    }
+                });
+        final RxObservableDiskCache<List<Serializable>, MyPolicy> cache = RxObservableDiskCache
+                .create(testBook, new Func1<List<Serializable>, MyPolicy>() {
+                    @Override
+                    public MyPolicy call(List<Serializable> serializables) {
+                        return new MyPolicy();
+                    }
+                }, new Func1<MyPolicy, Boolean>() {
+                    @Override
+                    public Boolean call(MyPolicy myPolicy) {
+                        return true;
+                    }
+                }).withMemoryTier(tier);
+        final List<Serializable> list = Arrays.<Serializable> asList(true, 1, "hello");
+        cache.transform(Single.just(list), KEY).toBlocking().last();
+        /* Without a disk entry any hit has to come from the tier */
+        testBook.destroy().await();
+        final TestSubscriber<Cached<List<Serializable>, MyPolicy>> subscriber = TestSubscriber
+                .create();
+        /* Act */
+        cache.transform(Single.just(list), KEY).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(2);
+        Assert.assertTrue(subscriber.getOnNextEvents().get(0).isFromDisk);
+        Assert.assertEquals(list, subscriber.getOnNextEvents().get(0).value);
+    }
+
+    @Test
+    public void validCache_observe_getCacheThenUpdates() {
+        initCache();
+        final RxObservableDiskCache<List<Serializable>, MyPolicy> cache = RxObservableDiskCache
+                .create(testBook, new Func1<List<Serializable>, MyPolicy>() {
+                    @Override
+                    public MyPolicy call(List<Serializable> serializables) {
+                        return new MyPolicy();
+                    }
+                }, new Func1<MyPolicy, Boolean>() {
+                    @Override
+                    public Boolean call(MyPolicy myPolicy) {
+                        return true;
+                    }
+                });
+        final List<Serializable> update = Arrays.<Serializable> asList(false, 2, "bye");
+        final TestSubscriber<Cached<List<Serializable>, MyPolicy>> subscriber = TestSubscriber
+                .create();
+        /* Act */
+        cache.observe(KEY).subscribe(subscriber);
+        Assert.assertTrue(subscriber.awaitValueCount(1, 5, TimeUnit.SECONDS));
+        cache.transform(Single.just(update), KEY).toBlocking().last();
+        Assert.assertTrue(subscriber.awaitValueCount(2, 5, TimeUnit.SECONDS));
+        /* Assert */
+        subscriber.assertNoErrors();
+        subscriber.assertNotCompleted();
+        Assert.assertTrue(subscriber.getOnNextEvents().get(0).isFromDisk);
+        Assert.assertEquals(update, subscriber.getOnNextEvents().get(1).value);
+        subscriber.unsubscribe();
+    }
+
+    @Test
+    public void expiredCache_laterObserver_skipReplayedValue() {
+        initCache();
+        final AtomicBoolean isValid = new AtomicBoolean(true);
+        final RxObservableDiskCache<List<Serializable>, MyPolicy> cache = createSwitchableCache(
+                isValid);
+        final TestSubscriber<Cached<List<Serializable>, MyPolicy>> first = TestSubscriber.create();
+        final TestSubscriber<Cached<List<Serializable>, MyPolicy>> later = TestSubscriber.create();
+        cache.observe(KEY).subscribe(first);
+        Assert.assertTrue(first.awaitValueCount(1, 5, TimeUnit.SECONDS));
+        /* Act */
+        isValid.set(false);
+        cache.observe(KEY).subscribe(later);
+        /* Assert */
+        Assert.assertFalse(later.awaitValueCount(1, 200, TimeUnit.MILLISECONDS));
+        first.unsubscribe();
+        later.unsubscribe();
+    }
+
+    @Test
+    public void deletedCache_laterObserver_skipReplayedValue() {
+        initCache();
+        final AtomicBoolean isValid = new AtomicBoolean(true);
+        final RxObservableDiskCache<List<Serializable>, MyPolicy> cache = createSwitchableCache(
+                isValid);
+        final TestSubscriber<Cached<List<Serializable>, MyPolicy>> first = TestSubscriber.create();
+        final TestSubscriber<Cached<List<Serializable>, MyPolicy>> later = TestSubscriber.create();
+        cache.observe(KEY).subscribe(first);
+        Assert.assertTrue(first.awaitValueCount(1, 5, TimeUnit.SECONDS));
+        isValid.set(false);
+        cache.transform(Single.<List<Serializable>> error(new IllegalStateException()), KEY)
+                .onErrorResumeNext(Observable.<Cached<List<Serializable>, MyPolicy>> empty())
+                .toBlocking().lastOrDefault(null);
+        Assert.assertFalse(testBook.exists(KEY).toBlocking().value());
+        /* Act */
+        isValid.set(true);
+        cache.observe(KEY).subscribe(later);
+        /* Assert */
+        Assert.assertFalse(later.awaitValueCount(1, 200, TimeUnit.MILLISECONDS));
+        first.unsubscribe();
+        later.unsubscribe();
+    }
+
+    @Test
+    public void oldVersionCache_migration_getMigratedCacheThenGetObservable() {
+        final List<Serializable> list = Arrays.<Serializable> asList(true, 1, "hello");
+        RxObservableDiskCache.transform(Single.just(list), KEY, testBook,
+                VersionPolicy.<List<Serializable>> create(1), VersionPolicy.validate(1))
+                .toBlocking().last();
+        final RxObservableDiskCache<List<Serializable>, VersionPolicy> cache = RxObservableDiskCache
+                .create(testBook, VersionPolicy.<List<Serializable>> create(2),
+                        VersionPolicy.validate(2))
+                .withMigration(VersionMigrations.<List<Serializable>> to(2)
+                        .register(1, 2, new Func1<List<Serializable>, List<Serializable>>() {
+                            @Override
+                            public List<Serializable> call(List<Serializable> serializables) {
+                                return Arrays.<Serializable> asList(true, 2, "hello");
+                            }
+                        }).forVersionPolicy());
+        final TestSubscriber<Cached<List<Serializable>, VersionPolicy>> subscriber = TestSubscriber
+                .create();
+        /* Act */
+        cache.transform(Single.just(list), KEY).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertNoErrors();
+        subscriber.assertCompleted();
+        subscriber.assertValueCount(2);
+        final Cached<List<Serializable>, VersionPolicy> migrated = subscriber.getOnNextEvents()
+                .get(0);
+        Assert.assertTrue(migrated.isFromDisk);
+        Assert.assertEquals(2, migrated.policy.version);
+        Assert.assertEquals(Arrays.<Serializable> asList(true, 2, "hello"), migrated.value);
+    }
+
+    @Test
+    public void sharedBook_migrateAll_onlyMigrateOwnEntries() {
+        final List<Serializable> list = Arrays.<Serializable> asList(true, 1, "hello");
+        RxObservableDiskCache.transform(Single.just(list), "profile_" + KEY, testBook,
+                VersionPolicy.<List<Serializable>> create(1), VersionPolicy.validate(1))
+                .toBlocking().last();
+        /* Entries of other caches, with another version or another type of Policy */
+        RxObservableDiskCache.transform(Single.just(list), "feed_" + KEY, testBook,
+                VersionPolicy.<List<Serializable>> create(5), VersionPolicy.validate(5))
+                .toBlocking().last();
+        initCache();
+        final RxObservableDiskCache<List<Serializable>, VersionPolicy> cache = RxObservableDiskCache
+                .create(testBook, VersionPolicy.<List<Serializable>> create(2),
+                        VersionPolicy.validate(2))
+                .withMigration(VersionMigrations.<List<Serializable>> to(2)
+                        .register(1, 2, new Func1<List<Serializable>, List<Serializable>>() {
+                            @Override
+                            public List<Serializable> call(List<Serializable> serializables) {
+                                return serializables;
+                            }
+                        }).forVersionPolicy());
+        /* Act */
+        cache.migrateAll("profile_", VersionPolicy.class).await();
+        /* Assert */
+        final VersionPolicy migrated = testBook.<VersionPolicy> read(
+                RxObservableDiskCache.composePolicyKey("profile_" + KEY)).toBlocking().value();
+        Assert.assertEquals(2, migrated.version);
+        final VersionPolicy other = testBook.<VersionPolicy> read(
+                RxObservableDiskCache.composePolicyKey("feed_" + KEY)).toBlocking().value();
+        Assert.assertEquals(5, other.version);
+        Assert.assertTrue(testBook.exists(KEY).toBlocking().value());
+        /* Checking every key still skips Policies of another type */
+        cache.migrateAll("", VersionPolicy.class).await();
+        Assert.assertTrue(testBook.exists(KEY).toBlocking().value());
+    }
+
+    @Test
+    public void statsCache_readsAndWrites_getStatsAndHotKeys() {
+        final RxObservableDiskCache<List<Serializable>, MyPolicy> cache = RxObservableDiskCache
+                .create(testBook, new Func1<List<Serializable>, MyPolicy>() {
+                    @Override
+                    public MyPolicy call(List<Serializable> serializables) {
+                        return new MyPolicy();
+                    }
+                }, new Func1<MyPolicy, Boolean>() {
+                    @Override
+                    public Boolean call(MyPolicy myPolicy) {
+                        return true;
+                    }
+                }).withStats(null, new Func1<List<Serializable>, Integer>() {
+                    @Override
+                    public Integer call(List<Serializable> serializables) {
+                        return serializables.size();
+                    }
+                });
+        final Single<List<Serializable>> request = Single
+                .just(Arrays.<Serializable> asList(true, 1, "hello"));
+        /* Act */
+        for (int i = 0; i < 3; i++) {
+            cache.transform(request, KEY).toBlocking().last();
+        }
+        cache.transform(request, "other_key").toBlocking().last();
+        final CacheStats stats = cache.stats(1);
+        /* Assert */
+        Assert.assertEquals(2, stats.hits);
+        Assert.assertEquals(2, stats.misses);
+        Assert.assertEquals(4, stats.writes);
+        Assert.assertEquals(12, stats.bytesWritten);
+        Assert.assertEquals(2, stats.estimatedKeysWritten);
+        Assert.assertEquals(0.5, stats.hitRatio(), 0.001);
+        Assert.assertEquals(1, stats.hotKeys.size());
+        final CacheStats.HotKey hotKey = stats.hotKeys.get(0);
+        Assert.assertEquals(KEY, hotKey.key);
+        Assert.assertEquals(3, hotKey.reads);
+        Assert.assertEquals(2, hotKey.hits);
+        Assert.assertEquals(3, hotKey.sizeBytes);
+    }
+
+    @Test
+    public void statsSnapshot_modifyAgeHistogram_keepSnapshot() {
+        final RxObservableDiskCache<String, TimePolicy> cache = RxObservableDiskCache
+                .create(testBook, TimePolicy.<String> create(), TimePolicy.validate(HOUR_MILLIS))
+                .withStats(TimePolicy.storedAt(), null);
+        cache.transform(Single.just("hello"), KEY).toBlocking().last();
+        cache.transform(Single.just("hello"), KEY).toBlocking().last();
+        final CacheStats stats = cache.stats();
+        /* Act */
+        stats.ageHistogram()[0] = 0;
+        /* Assert */
+        Assert.assertEquals(1, stats.ageHistogram()[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void statsCache_negativeTopN_throw() {
+        final RxObservableDiskCache<String, TimePolicy> cache = RxObservableDiskCache
+                .create(testBook, TimePolicy.<String> create(), TimePolicy.validate(HOUR_MILLIS))
+                .withStats();
+        /* Act */
+        cache.stats(-1);
+    }
+
+    private RxObservableDiskCache<List<Serializable>, MyPolicy> createSwitchableCache(
+            final AtomicBoolean isValid) {
+        return RxObservableDiskCache.create(testBook, new Func1<List<Serializable>, MyPolicy>() {
+            @Override
+            public MyPolicy call(List<Serializable> serializables) {
+                return new MyPolicy();
+            }
+        }, new Func1<MyPolicy, Boolean>() {
+            @Override
+            public Boolean call(MyPolicy myPolicy) {
+                return isValid.get();
+            }
+        });
+    }
+
+    private static byte[] serialize(Object value) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final ObjectOutputStream output = new ObjectOutputStream(bytes);
+            output.writeObject(value);
+            output.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T deserialize(byte[] bytes) {
+        try {
+            final ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            return (T)input.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
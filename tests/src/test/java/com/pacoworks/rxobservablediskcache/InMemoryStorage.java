@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import rx.Completable;
+import rx.Single;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+
+/**
+ * Local stand-in for a book. Every operation runs on the io scheduler and yields before accessing
+ * the map, so operations of different threads interleave as they do on disk.
+ */
+class InMemoryStorage implements Storage {
+    private final Map<String, Object> entries = new ConcurrentHashMap<>();
+
+    private final Set<String> corrupted = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Makes every read of key fail, as if its file couldn't be deserialized.
+     */
+    void corrupt(String key) {
+        corrupted.add(key);
+    }
+
+    @Override
+    public <T> Single<T> read(final String key) {
+        return Single.fromCallable(new Callable<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public T call() {
+                Thread.yield();
+                if (corrupted.contains(key)) {
+                    throw new IllegalStateException("Corrupted value for " + key);
+                }
+                final T value = (T)entries.get(key);
+                if (value == null) {
+                    throw new NoSuchElementException("No value for " + key);
+                }
+                return value;
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    @Override
+    public Completable write(final String key, final Object value) {
+        return Completable.fromAction(new Action0() {
+            @Override
+            public void call() {
+                Thread.yield();
+                entries.put(key, value);
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    @Override
+    public Completable delete(final String key) {
+        return Completable.fromAction(new Action0() {
+            @Override
+            public void call() {
+                Thread.yield();
+                entries.remove(key);
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    @Override
+    public Single<Boolean> exists(final String key) {
+        return Single.fromCallable(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                Thread.yield();
+                return entries.containsKey(key);
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    @Override
+    public Single<List<String>> keys() {
+        return Single.fromCallable(new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                Thread.yield();
+                return new ArrayList<>(entries.keySet());
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+}
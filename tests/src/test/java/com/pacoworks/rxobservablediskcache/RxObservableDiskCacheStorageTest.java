@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.nio.charset.Charset;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pacoworks.rxobservablediskcache.policy.VersionPolicy;
+
+import rx.Single;
+import rx.exceptions.CompositeException;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+
+/**
+ * Checks how the cache handles the state of the storage, running on the JVM over
+ * {@link InMemoryStorage}.
+ */
+public class RxObservableDiskCacheStorageTest {
+    private static final String KEY = "test_key";
+
+    private static final int VERSION = 1;
+
+    private static final Func1<String, byte[]> STRING_BYTES = new Func1<String, byte[]>() {
+        @Override
+        public byte[] call(String value) {
+            return value.getBytes(Charset.forName("UTF-8"));
+        }
+    };
+
+    private InMemoryStorage storage;
+
+    private RxObservableDiskCache<String, VersionPolicy> cache;
+
+    @Before
+    public void setUp() {
+        storage = new InMemoryStorage();
+        cache = new RxObservableDiskCache<>(storage, VersionPolicy.<String> create(VERSION),
+                VersionPolicy.validate(VERSION));
+    }
+
+    @Test
+    public void emptyStorage_transform_getValueWithoutError() {
+        final TestSubscriber<Cached<String, VersionPolicy>> subscriber = TestSubscriber.create();
+        /* Act */
+        cache.transform(Single.just("fresh"), KEY).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(1);
+        Assert.assertEquals("fresh", subscriber.getOnNextEvents().get(0).value);
+    }
+
+    @Test
+    public void corruptedValue_transform_getValueThenError() {
+        cache.transform(Single.just("stored"), KEY).toBlocking().last();
+        storage.corrupt(KEY);
+        final TestSubscriber<Cached<String, VersionPolicy>> subscriber = TestSubscriber.create();
+        /* Act */
+        cache.transform(Single.just("fresh"), KEY).subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertValueCount(1);
+        Assert.assertFalse(subscriber.getOnNextEvents().get(0).isFromDisk);
+        subscriber.assertError(IllegalStateException.class);
+    }
+
+    @Test
+    public void corruptedValue_transformFailing_deleteEntryAndGetBothErrors() {
+        cache.transform(Single.just("stored"), KEY).toBlocking().last();
+        storage.corrupt(KEY);
+        final TestSubscriber<Cached<String, VersionPolicy>> subscriber = TestSubscriber.create();
+        /* Act */
+        cache.transform(Single.<String> error(new IllegalArgumentException()), KEY)
+                .subscribe(subscriber);
+        subscriber.awaitTerminalEvent();
+        /* Assert */
+        subscriber.assertNoValues();
+        subscriber.assertError(CompositeException.class);
+        Assert.assertFalse(storage.exists(RxObservableDiskCache.composePolicyKey(KEY))
+                .toBlocking().value());
+    }
+
+    @Test
+    public void validEntry_migrateAll_skipReadingValue() {
+        cache.transform(Single.just("stored"), KEY).toBlocking().last();
+        /* Deleted if its Value was read */
+        storage.corrupt(KEY);
+        /* Act */
+        final Throwable error = cache.migrateAll("", VersionPolicy.class).get();
+        /* Assert */
+        Assert.assertNull(error);
+        Assert.assertTrue(storage.exists(KEY).toBlocking().value());
+    }
+
+    @Test
+    public void unreadableReference_collectGarbage_failWithoutDeleting() {
+        final RxObservableDiskCache<String, VersionPolicy> deduplicated = cache
+                .withDeduplication(STRING_BYTES);
+        deduplicated.transform(Single.just("first"), KEY).toBlocking().last();
+        deduplicated.transform(Single.just("second"), KEY).toBlocking().last();
+        storage.corrupt(KEY);
+        /* Act */
+        final Throwable error = deduplicated.collectGarbage().get();
+        /* Assert */
+        Assert.assertTrue(error instanceof IllegalStateException);
+        Assert.assertEquals(2, countBlobs());
+    }
+
+    @Test
+    public void unreadablePlainValue_collectGarbage_skipIt() {
+        final RxObservableDiskCache<String, VersionPolicy> deduplicated = cache
+                .withDeduplication(STRING_BYTES);
+        deduplicated.transform(Single.just("first"), KEY).toBlocking().last();
+        deduplicated.transform(Single.just("second"), KEY).toBlocking().last();
+        cache.transform(Single.just("plain"), "plain_key").toBlocking().last();
+        storage.corrupt("plain_key");
+        /* Act */
+        final Throwable error = deduplicated.collectGarbage().get();
+        /* Assert */
+        Assert.assertNull(error);
+        Assert.assertEquals(1, countBlobs());
+    }
+
+    private int countBlobs() {
+        int blobs = 0;
+        for (String key : storage.keys().toBlocking().value()) {
+            if (key.startsWith("rxobservablediskcache_blob_")) {
+                blobs++;
+            }
+        }
+        return blobs;
+    }
+}
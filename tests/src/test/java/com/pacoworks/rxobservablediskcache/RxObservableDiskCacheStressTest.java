@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) pakoito 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pacoworks.rxobservablediskcache;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import rx.Single;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+
+/**
+ * Runs transform() from several threads over a small set of keys, mixing fresh writes and
+ * invalidations, and checks every Value is seen with the Policy it was written with.
+ * <p/>
+ * It runs on the JVM over {@link InMemoryStorage}, so it measures the cache and not the disk.
+ */
+public class RxObservableDiskCacheStressTest {
+    private static final int THREADS = 8;
+
+    private static final int OPERATIONS_PER_THREAD = 250;
+
+    private static final int KEYS = 4;
+
+    private static final int INVALIDATE_ONE_IN = 5;
+
+    /* Most reads find a Value, unless they keep overlapping writes or follow an invalidation */
+    private static final int MIN_HITS = THREADS * OPERATIONS_PER_THREAD / 4;
+
+    private RxObservableDiskCache<StressValue, StressPolicy> cache;
+
+    private RxObservableDiskCache<StressValue, StressPolicy> invalidatingCache;
+
+    @Before
+    public void setUp() {
+        final Storage storage = new InMemoryStorage();
+        final Func1<StressValue, StressPolicy> policyCreator = new Func1<StressValue, StressPolicy>() {
+            @Override
+            public StressPolicy call(StressValue value) {
+                return new StressPolicy(value.id);
+            }
+        };
+        cache = new RxObservableDiskCache<>(storage, policyCreator,
+                new Func1<StressPolicy, Boolean>() {
+                    @Override
+                    public Boolean call(StressPolicy policy) {
+                        return true;
+                    }
+                });
+        invalidatingCache = new RxObservableDiskCache<>(storage, policyCreator,
+                new Func1<StressPolicy, Boolean>() {
+                    @Override
+                    public Boolean call(StressPolicy policy) {
+                        return false;
+                    }
+                });
+    }
+
+    @Test
+    public void concurrentWritesAndInvalidations_neverMismatchValueAndPolicy()
+            throws InterruptedException {
+        final AtomicInteger ids = new AtomicInteger();
+        final AtomicInteger mismatches = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger hits = new AtomicInteger();
+        final long[][] latencies = new long[THREADS][OPERATIONS_PER_THREAD];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(THREADS);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        for (int thread = 0; thread < THREADS; thread++) {
+            final long[] threadLatencies = latencies[thread];
+            final Random random = new Random(thread);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            final String key = "key_" + random.nextInt(KEYS);
+                            final RxObservableDiskCache<StressValue, StressPolicy> target = random
+                                    .nextInt(INVALIDATE_ONE_IN) == 0 ? invalidatingCache : cache;
+                            final TestSubscriber<Cached<StressValue, StressPolicy>> subscriber = TestSubscriber
+                                    .create();
+                            final long startNanos = System.nanoTime();
+                            target.transform(Single.just(new StressValue(ids.incrementAndGet())),
+                                    key).subscribe(subscriber);
+                            subscriber.awaitTerminalEvent();
+                            threadLatencies[i] = System.nanoTime() - startNanos;
+                            errors.addAndGet(subscriber.getOnErrorEvents().size());
+                            for (Cached<StressValue, StressPolicy> cached : subscriber
+                                    .getOnNextEvents()) {
+                                if (cached.value.id != cached.policy.id) {
+                                    mismatches.incrementAndGet();
+                                }
+                                if (cached.isFromDisk) {
+                                    hits.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finish.countDown();
+                    }
+                }
+            });
+        }
+        /* Act */
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        Assert.assertTrue(finish.await(5, TimeUnit.MINUTES));
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        executor.shutdown();
+        /* Assert */
+        final long[] sorted = merge(latencies);
+        System.out.println(String.format(Locale.US,
+                "%d ops in %d ms, %.1f ops/s, p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d hits",
+                sorted.length, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                sorted.length / (elapsedNanos / 1e9), percentileMillis(sorted, 0.50),
+                percentileMillis(sorted, 0.99), percentileMillis(sorted, 1.0), hits.get()));
+        /* Keys deleted by an invalidation are misses, only storage failures are forwarded */
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(0, mismatches.get());
+        Assert.assertTrue("Cache hits: " + hits.get(), hits.get() >= MIN_HITS);
+    }
+
+    private static long[] merge(long[][] latencies) {
+        final long[] merged = new long[latencies.length * latencies[0].length];
+        for (int i = 0; i < latencies.length; i++) {
+            System.arraycopy(latencies[i], 0, merged, i * latencies[i].length, latencies[i].length);
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        final int index = (int)Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    public static class StressValue {
+        int id;
+
+        StressValue() {
+        }
+
+        StressValue(int id) {
+            this.id = id;
+        }
+    }
+
+    public static class StressPolicy {
+        int id;
+
+        StressPolicy() {
+        }
+
+        StressPolicy(int id) {
+            this.id = id;
+        }
+    }
+}